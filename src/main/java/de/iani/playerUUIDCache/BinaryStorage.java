@@ -1,110 +1,786 @@
 package de.iani.playerUUIDCache;
 
+import de.iani.playerUUIDCache.NameHistory.NameChange;
+import de.iani.playerUUIDCache.util.collections.UUIDIntMap;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 import java.util.logging.Level;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
 
 /**
+ * A storage file for players only. Unless it is indexed, it does not support lookups and all players are loaded at the
+ * start.
  *
- * Each entry has 56 bytes:
+ * The file starts with a header of 16 bytes: the version, the number of entries, the CRC32C of these two values and 4
+ * unused bytes. It is followed by blocks of BLOCK_ENTRIES entries, each followed by the CRC32C of its entries. Each
+ * entry has 40 bytes:
  * 16 byte UUID
- * 32 byte Name (UTF16)
+ * 16 byte Name (ISO-8859-1, or a 0 byte followed by UTF-8 for other names, padded with zeros)
  * 8 byte Last Seen
+ *
+ * An update is ignored if the stored entry of the player has a newer last seen time.
+ *
+ * Files of version 1 (56 byte entries with UTF-16 names and no header or checksums) are upgraded when they are loaded.
+ *
+ * In memory mapped mode the entries are written into a mapping of the file that grows in steps of MAP_GROW_BLOCKS
+ * blocks, so writes do not need system calls. The checksums and the header are updated after every update. Without
+ * the mapping only the header is updated after every update, the checksums of changed blocks are updated at most every
+ * flushInterval and when the file is closed. After a crash these blocks are reported as damaged once, but loaded.
+ *
+ * In indexed mode the file is always memory mapped and players are looked up with a {@link BinaryStorageIndex} in
+ * players.idx instead of loading them at the start. Only the header is read when the index is valid, the checksums of
+ * the blocks are checked when the index has to be rebuilt.
  */
-public class BinaryStorage {
-    private static final int ENTRY_LENGTH = 56;
+public class BinaryStorage implements PlayerStorage {
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 16;
+    static final int ENTRY_LENGTH = 40;
+    private static final int NAME_LENGTH = 16;
+    private static final int BLOCK_ENTRIES = 1024;
+    private static final int BLOCK_DATA_LENGTH = BLOCK_ENTRIES * ENTRY_LENGTH;
+    private static final int BLOCK_LENGTH = BLOCK_DATA_LENGTH + 4;
+    private static final int V1_ENTRY_LENGTH = 56;
+    private static final int CHUNK_SIZE = 1000;
+    private static final int MAP_GROW_BLOCKS = 64;
     private final PlayerUUIDCache plugin;
-    private final HashMap<UUID, Integer> filePositions;
-    private final RandomAccessFile file;
+    private final UUIDIntMap filePositions;
+    private RandomAccessFile file;
+    private final boolean memoryMapped;
+    private final boolean indexed;
+    private BinaryStorageIndex index;
+    private final long flushInterval;
+    /**
+     * Reused for all writes if the file is not memory mapped
+     */
+    private final ByteBuffer writeBuffer;
+    /**
+     * Reused to compute the checksums if the file is not memory mapped
+     */
+    private final ByteBuffer blockBuffer;
+    private final CRC32C crc;
+    /**
+     * Blocks whose checksums must be updated
+     */
+    private final BitSet dirtyBlocks;
+    private MappedByteBuffer mapping;
+    private boolean dirty;
+    private long lastFlush;
     private boolean loaded = false;
     private int totalEntries = 0;
+    /**
+     * The number of entries in the header of the file, or -1 if it must be written
+     */
+    private int headerEntries = -1;
 
     public BinaryStorage(PlayerUUIDCache plugin) throws IOException {
+        this(plugin, false, 0);
+    }
+
+    /**
+     * Opens the storage file.
+     *
+     * @param memoryMapped
+     *            if writes should use a memory mapping of the file
+     * @param flushInterval
+     *            the minimum time in ms between two flushes of the mapping to the disk, 0 to flush after every update or
+     *            -1 to flush only when the storage is closed. Unflushed changes survive a crash of the server, but not of
+     *            the operating system. Without a mapping it is the interval for updating the checksums.
+     */
+    public BinaryStorage(PlayerUUIDCache plugin, boolean memoryMapped, long flushInterval) throws IOException {
+        this(plugin, memoryMapped, flushInterval, false);
+    }
+
+    /**
+     * Opens the storage file.
+     *
+     * @param indexed
+     *            if players should be looked up in an index file instead of loading all of them. The file is memory
+     *            mapped then.
+     */
+    public BinaryStorage(PlayerUUIDCache plugin, boolean memoryMapped, long flushInterval, boolean indexed) throws IOException {
         this.plugin = plugin;
-        filePositions = new HashMap<UUID, Integer>();
+        this.memoryMapped = memoryMapped || indexed;
+        this.indexed = indexed;
+        this.flushInterval = flushInterval;
+        filePositions = new UUIDIntMap();
         file = new RandomAccessFile(getDatabaseFile(plugin), "rw");
+        writeBuffer = ByteBuffer.allocate(ENTRY_LENGTH);
+        blockBuffer = ByteBuffer.allocate(BLOCK_DATA_LENGTH);
+        crc = new CRC32C();
+        dirtyBlocks = new BitSet();
+        lastFlush = System.currentTimeMillis();
+        if (indexed) {
+            openIndex();
+        } else {
+            // the index would miss the changes made without it
+            getIndexFile(plugin).delete();
+        }
     }
 
     public static File getDatabaseFile(PlayerUUIDCache plugin) {
         return new File(plugin.getDataFolder(), "players.dat");
     }
 
-    public ArrayList<CachedPlayer> loadAllPlayers() throws IOException {
+    public static File getIndexFile(PlayerUUIDCache plugin) {
+        return new File(plugin.getDataFolder(), "players.idx");
+    }
+
+    private void openIndex() throws IOException {
+        index = new BinaryStorageIndex(getIndexFile(plugin));
+        int count = readHeaderEntries();
+        if (count >= 0 && index.open(count)) {
+            totalEntries = count;
+            headerEntries = count;
+            ensureMapped(totalEntries);
+        } else {
+            long start = System.currentTimeMillis();
+            loadAllPlayersFromFile(players -> {
+            });
+            filePositions.clear();
+            index.rebuild(mapping, totalEntries);
+            plugin.getLogger().info("Rebuilt the index of the storage file in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        loaded = true;
+    }
+
+    /**
+     * @return the number of entries in the header, or -1 if the header is damaged or has an other version
+     */
+    private int readHeaderEntries() throws IOException {
+        if (file.length() < HEADER_LENGTH) {
+            return -1;
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        file.seek(0);
+        file.readFully(header);
+        ByteBuffer bb = ByteBuffer.wrap(header);
+        return bb.getInt(0) == VERSION && headerCrc(header) == bb.getInt(8) ? bb.getInt(4) : -1;
+    }
+
+    /**
+     * @return true if the storage was created in indexed mode
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Gets the number of entries in the file. It is only known after the players were loaded or in indexed mode.
+     */
+    public synchronized int getEntryCount() {
+        return totalEntries;
+    }
+
+    @Override
+    public boolean supportsLookups() {
+        return indexed;
+    }
+
+    @Override
+    public boolean supportsNameHistories() {
+        return false;
+    }
+
+    @Override
+    public boolean supportsProfiles() {
+        return false;
+    }
+
+    @Override
+    public synchronized int loadAllPlayers(Consumer<CachedPlayer[]> chunkConsumer) throws StorageException {
+        if (indexed) {
+            return loadAllPlayersFromMapping(chunkConsumer);
+        }
         if (loaded) {
             throw new IllegalStateException("loadAllPlayers can only be called once");
         }
         loaded = true;
-        ArrayList<CachedPlayer> players = new ArrayList<CachedPlayer>();
+        try {
+            return loadAllPlayersFromFile(chunkConsumer);
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private static long blockStart(int block) {
+        return HEADER_LENGTH + (long) block * BLOCK_LENGTH;
+    }
+
+    static long entryPosition(int index) {
+        return blockStart(index / BLOCK_ENTRIES) + (long) (index % BLOCK_ENTRIES) * ENTRY_LENGTH;
+    }
+
+    private int blockCrc(byte[] data, int blockStart) {
+        crc.reset();
+        crc.update(data, blockStart, BLOCK_DATA_LENGTH);
+        return (int) crc.getValue();
+    }
+
+    private int headerCrc(byte[] header) {
+        crc.reset();
+        crc.update(header, 0, 8);
+        return (int) crc.getValue();
+    }
+
+    private int loadAllPlayersFromFile(Consumer<CachedPlayer[]> chunkConsumer) throws IOException {
         if (file.length() >= 4) {
-            int version = file.readInt();
-            if (version != 1) {
+            byte[] data = new byte[(int) file.length()];
+            file.seek(0);
+            file.readFully(data);
+            int version = ByteBuffer.wrap(data).getInt(0);
+            if (version == 1) {
+                data = upgradeFromV1(data);
+                replaceFile(data);
+                plugin.getLogger().info("Upgraded the storage file to version " + VERSION);
+            } else if (version != VERSION) {
                 throw new IOException("Invalid data file version: " + version);
             }
-            long length = file.length() - 4;
-            if (length > 0) {
-                long now = System.currentTimeMillis();
-                byte[] data = new byte[(int) length];
-                file.readFully(data);
-                totalEntries = ((int) length) / ENTRY_LENGTH;
-                ByteBuffer bb = ByteBuffer.wrap(data);
-                char[] nameChars = new char[16];
-                for (int i = 0; i < totalEntries; i++) {
-                    long msb = bb.getLong();
-                    long lsb = bb.getLong();
-                    UUID uuid = new UUID(msb, lsb);
-                    int nameLength = 16;
-                    for (int j = 0; j < 16; j++) {
-                        nameChars[j] = bb.getChar();
-                        if (nameChars[j] == 0 && nameLength == 16) {
-                            nameLength = j;
-                        }
-                    }
-                    String name = new String(nameChars, 0, nameLength);
-                    long lastSeen = bb.getLong();
-                    players.add(new CachedPlayer(uuid, name, lastSeen, now));
-                    // plugin.getLogger().info(uuid + ": " + name);
-                    filePositions.put(uuid, i);
+            readEntries(data, chunkConsumer);
+        }
+        if (memoryMapped) {
+            ensureMapped(totalEntries);
+        }
+        // writes the header of new files and the checksums of damaged blocks
+        finishWrite(true);
+        return filePositions.size();
+    }
+
+    /**
+     * Reads all entries. The UUIDs are collected on this thread, then the blocks are checked and decoded in parallel
+     * on the common fork join pool. The decoded blocks are passed to the consumer on this thread, in order.
+     */
+    private void readEntries(byte[] data, Consumer<CachedPlayer[]> chunkConsumer) {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        int count = -1;
+        if (data.length >= HEADER_LENGTH && headerCrc(data) == bb.getInt(8)) {
+            count = bb.getInt(4);
+            headerEntries = count;
+        } else {
+            plugin.getLogger().warning("The header of the storage file is damaged, loading all entries until the first empty one");
+        }
+        int usedEntries = 0;
+        for (int index = 0; count < 0 || index < count; index++) {
+            int position = (int) entryPosition(index);
+            if (position + ENTRY_LENGTH > data.length) {
+                break;
+            }
+            long msb = bb.getLong(position);
+            long lsb = bb.getLong(position + 8);
+            if (msb == 0 && lsb == 0) {
+                if (count < 0) {
+                    // unused slots of a memory mapped file
+                    break;
                 }
+                continue;
             }
-        } else {
-            file.seek(0);
-            file.writeInt(1);// current version
+            filePositions.put(msb, lsb, index);
+            usedEntries = index + 1;
+        }
+        totalEntries = count >= 0 ? count : usedEntries;
+        int dataBlocks = data.length < HEADER_LENGTH ? 0 : (data.length - HEADER_LENGTH + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+        int blocks = Math.min(dataBlocks, (totalEntries + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES);
+        boolean[] damaged = new boolean[blocks];
+        CachedPlayer[][] decoded = new CachedPlayer[blocks][];
+        int entries = usedEntries;
+        long now = System.currentTimeMillis();
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            int blockStart = (int) blockStart(block);
+            if (blockStart + BLOCK_LENGTH > data.length) {
+                damaged[block] = true;
+            } else {
+                CRC32C blockCrc = new CRC32C();
+                blockCrc.update(data, blockStart, BLOCK_DATA_LENGTH);
+                damaged[block] = (int) blockCrc.getValue() != bb.getInt(blockStart + BLOCK_DATA_LENGTH);
+            }
+            ArrayList<CachedPlayer> players = new ArrayList<CachedPlayer>(BLOCK_ENTRIES);
+            for (int i = 0; i < BLOCK_ENTRIES; i++) {
+                int index = block * BLOCK_ENTRIES + i;
+                int position = blockStart + i * ENTRY_LENGTH;
+                if (index >= entries || position + ENTRY_LENGTH > data.length) {
+                    break;
+                }
+                if (bb.getLong(position) != 0 || bb.getLong(position + 8) != 0) {
+                    players.add(readEntry(bb, position, now));
+                }
+            }
+            decoded[block] = players.toArray(new CachedPlayer[players.size()]);
+        });
+        for (int block = 0; block < blocks; block++) {
+            if (decoded[block].length > 0) {
+                chunkConsumer.accept(decoded[block]);
+            }
+            decoded[block] = null;
+            if (damaged[block]) {
+                plugin.getLogger().warning("Block " + block + " of the storage file has an invalid checksum, some players may be missing or outdated");
+                dirtyBlocks.set(block);
+            }
+        }
+    }
+
+    private int loadAllPlayersFromMapping(Consumer<CachedPlayer[]> chunkConsumer) {
+        long now = System.currentTimeMillis();
+        ArrayList<CachedPlayer> players = new ArrayList<CachedPlayer>();
+        int count = 0;
+        for (int i = 0; i < totalEntries; i++) {
+            int position = (int) entryPosition(i);
+            if (mapping.getLong(position) != 0 || mapping.getLong(position + 8) != 0) {
+                players.add(readEntry(mapping, position, now));
+                if (players.size() == CHUNK_SIZE) {
+                    chunkConsumer.accept(players.toArray(new CachedPlayer[players.size()]));
+                    count += players.size();
+                    players.clear();
+                }
+            }
+        }
+        if (!players.isEmpty()) {
+            chunkConsumer.accept(players.toArray(new CachedPlayer[players.size()]));
+            count += players.size();
+        }
+        return count;
+    }
+
+    /**
+     * Converts a file of version 1. Players whose names cannot be stored are left out, the old file is kept as
+     * players.dat.v1 in that case.
+     */
+    private byte[] upgradeFromV1(byte[] v1) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(v1);
+        int entries = (v1.length - 4) / V1_ENTRY_LENGTH;
+        ArrayList<CachedPlayer> players = new ArrayList<>();
+        int skipped = 0;
+        for (int i = 0; i < entries; i++) {
+            int from = 4 + i * V1_ENTRY_LENGTH;
+            if (in.getLong(from) == 0 && in.getLong(from + 8) == 0) {
+                break;
+            }
+            StringBuilder name = new StringBuilder();
+            for (int j = 0; j < NAME_LENGTH && in.getChar(from + 16 + j * 2) != 0; j++) {
+                name.append(in.getChar(from + 16 + j * 2));
+            }
+            if (canStoreName(name.toString())) {
+                players.add(new CachedPlayer(new UUID(in.getLong(from), in.getLong(from + 8)), name.toString(), in.getLong(from + 48), 0));
+            } else {
+                skipped++;
+            }
+        }
+        int count = players.size();
+        int blocks = (count + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES;
+        byte[] v2 = new byte[(int) blockStart(blocks)];
+        ByteBuffer out = ByteBuffer.wrap(v2);
+        for (int i = 0; i < count; i++) {
+            writeEntry(out, (int) entryPosition(i), players.get(i));
+        }
+        if (skipped > 0) {
+            File backup = new File(plugin.getDataFolder(), "players.dat.v1");
+            Files.write(backup.toPath(), v1);
+            plugin.getLogger().warning(skipped + " players were not upgraded because their names cannot be stored in version " + VERSION + ", the old file was kept as " + backup.getName());
+        }
+        for (int block = 0; block < blocks; block++) {
+            int blockStart = (int) blockStart(block);
+            out.putInt(blockStart + BLOCK_DATA_LENGTH, blockCrc(v2, blockStart));
+        }
+        out.putInt(0, VERSION);
+        out.putInt(4, count);
+        out.putInt(8, headerCrc(v2));
+        return v2;
+    }
+
+    /**
+     * Replaces the storage file with the given contents. A new file is written and then moved over the old one, so the
+     * old file stays intact if this fails.
+     */
+    private void replaceFile(byte[] data) throws IOException {
+        File target = getDatabaseFile(plugin);
+        File temp = new File(target.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        file.close();
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        file = new RandomAccessFile(target, "rw");
+    }
+
+    /**
+     * Makes sure the mapping contains the block of the entry with the given index.
+     */
+    private void ensureMapped(int index) throws IOException {
+        int block = index / BLOCK_ENTRIES;
+        if (mapping == null || mapping.capacity() < blockStart(block + 1)) {
+            if (mapping != null && dirty) {
+                mapping.force();
+            }
+            mapping = file.getChannel().map(MapMode.READ_WRITE, 0, blockStart((block / MAP_GROW_BLOCKS + 1) * MAP_GROW_BLOCKS));
+        }
+    }
+
+    @Override
+    public synchronized void addOrUpdatePlayers(CachedPlayer... entries) throws StorageException {
+        try {
+            for (CachedPlayer player : entries) {
+                addOrUpdatePlayer(player);
+            }
+            long now = System.currentTimeMillis();
+            boolean flush = flushInterval >= 0 && now - lastFlush >= flushInterval;
+            // without a mapping the checksum of a block needs a read of the whole block, so it is only updated on flushes
+            finishWrite(mapping != null || flush);
+            if (flush) {
+                if (mapping != null && dirty) {
+                    mapping.force();
+                    dirty = false;
+                }
+                lastFlush = now;
+            }
+        } catch (IOException e) {
+            throw new StorageException(e);
         }
-        return players;
     }
 
-    public void addOrUpdatePlayer(CachedPlayer player) throws IOException {
+    private void addOrUpdatePlayer(CachedPlayer player) throws IOException {
         if (!loaded) {
             throw new IllegalStateException("loadAllPlayers must be called first");
         }
-        Integer knownPosition = filePositions.get(player.getUUID());
-        if (knownPosition == null) {
+        if (!canStoreName(player.getName())) {
+            plugin.getLogger().warning("The name of the player " + player.getUUID() + " cannot be stored: " + player.getName());
+            return;
+        }
+        if (index != null) {
+            addOrUpdateIndexedPlayer(player);
+            return;
+        }
+        int knownPosition = filePositions.get(player.getUUID());
+        if (knownPosition >= 0 && readLastSeen(knownPosition) > player.getLastSeen()) {
+            // concurrent updates may arrive in any order, an older entry must not replace a newer one
+            return;
+        }
+        if (knownPosition < 0) {
             knownPosition = totalEntries++;
             filePositions.put(player.getUUID(), knownPosition);
-            // plugin.getLogger().info("Add new: " + player.getUUID() + ": " + player.getName());
+        }
+        long position = entryPosition(knownPosition);
+        if (mapping != null) {
+            ensureMapped(knownPosition);
+            writeEntry(mapping, (int) position, player);
+            dirty = true;
         } else {
-            // plugin.getLogger().info("Found (" + knownPosition + "): " + player.getUUID() + ": " + player.getName());
+            writeEntry(writeBuffer, 0, player);
+            file.seek(position);
+            file.write(writeBuffer.array());
+        }
+        dirtyBlocks.set(knownPosition / BLOCK_ENTRIES);
+    }
+
+    private long readLastSeen(int knownPosition) throws IOException {
+        long position = entryPosition(knownPosition) + 32;
+        if (mapping != null) {
+            return mapping.getLong((int) position);
         }
-        file.seek(knownPosition * ENTRY_LENGTH + 4);
-        byte[] dataOut = new byte[ENTRY_LENGTH];
-        ByteBuffer buffer = ByteBuffer.wrap(dataOut);
-        buffer.putLong(player.getUUID().getMostSignificantBits());
-        buffer.putLong(player.getUUID().getLeastSignificantBits());
-        String name = player.getName();
-        for (int i = 0; i < 16; i++) {
-            buffer.putChar(name.length() > i ? name.charAt(i) : 0);
+        file.seek(position);
+        return file.readLong();
+    }
+
+    private void addOrUpdateIndexedPlayer(CachedPlayer player) throws IOException {
+        int knownPosition = index.findUUID(mapping, player.getUUID().getMostSignificantBits(), player.getUUID().getLeastSignificantBits());
+        boolean added = knownPosition < 0;
+        boolean renamed = false;
+        if (added) {
+            knownPosition = totalEntries++;
+        } else {
+            CachedPlayer stored = readEntry(mapping, (int) entryPosition(knownPosition), 0);
+            if (stored.getLastSeen() > player.getLastSeen()) {
+                return;
+            }
+            renamed = !stored.getName().equalsIgnoreCase(player.getName());
+        }
+        ensureMapped(knownPosition);
+        writeEntry(mapping, (int) entryPosition(knownPosition), player);
+        dirty = true;
+        dirtyBlocks.set(knownPosition / BLOCK_ENTRIES);
+        if (added) {
+            index.addEntry(mapping, knownPosition, totalEntries);
+        } else if (renamed) {
+            index.addName(mapping, knownPosition, totalEntries);
+        }
+    }
+
+    static CachedPlayer readEntry(ByteBuffer buffer, int offset, long now) {
+        UUID uuid = new UUID(buffer.getLong(offset), buffer.getLong(offset + 8));
+        return new CachedPlayer(uuid, readName(buffer, offset), buffer.getLong(offset + 32), now);
+    }
+
+    static String readName(ByteBuffer buffer, int offset) {
+        int start = offset + 16;
+        boolean utf8 = buffer.get(start) == 0;
+        if (utf8) {
+            start++;
+        }
+        int nameLength = 0;
+        while (start + nameLength < offset + 16 + NAME_LENGTH && buffer.get(start + nameLength) != 0) {
+            nameLength++;
+        }
+        byte[] name = new byte[nameLength];
+        buffer.get(start, name);
+        return new String(name, utf8 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encodes a name like {@link de.iani.playerUUIDCache.util.collections.CompactNames}: names with up to 16
+     * ISO-8859-1 chars as they are, other names as a 0 byte followed by up to 15 bytes of UTF-8.
+     *
+     * @return the encoded name, or null if it does not fit into an entry
+     */
+    private static byte[] encodeName(String name) {
+        boolean latin1 = name.length() <= NAME_LENGTH;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == 0) {
+                return null;
+            }
+            if (c > 0xff) {
+                latin1 = false;
+            }
+        }
+        if (latin1) {
+            return name.getBytes(StandardCharsets.ISO_8859_1);
+        }
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > NAME_LENGTH - 1) {
+            return null;
+        }
+        byte[] encoded = new byte[utf8.length + 1];
+        System.arraycopy(utf8, 0, encoded, 1, utf8.length);
+        return encoded;
+    }
+
+    static boolean canStoreName(String name) {
+        return encodeName(name) != null;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the name cannot be stored, see {@link #canStoreName(String)}
+     */
+    static void writeEntry(ByteBuffer buffer, int offset, CachedPlayer player) {
+        byte[] name = encodeName(player.getName());
+        if (name == null) {
+            throw new IllegalArgumentException("The name cannot be stored: " + player.getName());
+        }
+        buffer.putLong(offset, player.getUUID().getMostSignificantBits());
+        buffer.putLong(offset + 8, player.getUUID().getLeastSignificantBits());
+        for (int i = 0; i < NAME_LENGTH; i++) {
+            buffer.put(offset + 16 + i, i < name.length ? name[i] : 0);
+        }
+        buffer.putLong(offset + 32, player.getLastSeen());
+    }
+
+    /**
+     * Updates the checksums of all changed blocks if requested and the header. The header is written last, so new
+     * entries are not counted before they are written completely.
+     */
+    private void finishWrite(boolean updateChecksums) throws IOException {
+        for (int block = updateChecksums ? dirtyBlocks.nextSetBit(0) : -1; block >= 0; block = dirtyBlocks.nextSetBit(block + 1)) {
+            long blockStart = blockStart(block);
+            crc.reset();
+            if (mapping != null) {
+                crc.update(mapping.slice((int) blockStart, BLOCK_DATA_LENGTH));
+                mapping.putInt((int) blockStart + BLOCK_DATA_LENGTH, (int) crc.getValue());
+            } else {
+                // the end of the last block may not be written yet
+                Arrays.fill(blockBuffer.array(), (byte) 0);
+                blockBuffer.clear();
+                FileChannel channel = file.getChannel();
+                while (blockBuffer.hasRemaining() && channel.read(blockBuffer, blockStart + blockBuffer.position()) > 0) {
+                }
+                crc.update(blockBuffer.array(), 0, BLOCK_DATA_LENGTH);
+                file.seek(blockStart + BLOCK_DATA_LENGTH);
+                file.writeInt((int) crc.getValue());
+            }
+        }
+        if (updateChecksums) {
+            dirtyBlocks.clear();
+        }
+        if (headerEntries != totalEntries) {
+            byte[] header = new byte[HEADER_LENGTH];
+            ByteBuffer bb = ByteBuffer.wrap(header);
+            bb.putInt(0, VERSION);
+            bb.putInt(4, totalEntries);
+            bb.putInt(8, headerCrc(header));
+            if (mapping != null) {
+                mapping.put(0, header);
+                dirty = true;
+            } else {
+                file.seek(0);
+                file.write(header);
+            }
+            headerEntries = totalEntries;
         }
-        buffer.putLong(player.getLastSeen());
-        file.write(dataOut);
     }
 
-    public void close() {
+    @Override
+    public synchronized CachedPlayer getPlayer(UUID uuid) {
+        if (index == null) {
+            return null;
+        }
+        int entry = index.findUUID(mapping, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return entry < 0 ? null : readEntry(mapping, (int) entryPosition(entry), System.currentTimeMillis());
+    }
+
+    @Override
+    public synchronized CachedPlayer getPlayer(String name) {
+        if (index == null) {
+            return null;
+        }
+        int entry = index.findName(mapping, name);
+        return entry < 0 ? null : readEntry(mapping, (int) entryPosition(entry), System.currentTimeMillis());
+    }
+
+    @Override
+    public List<CachedPlayer> getPlayers(Collection<UUID> uuids) {
+        List<CachedPlayer> result = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            CachedPlayer player = getPlayer(uuid);
+            if (player != null) {
+                result.add(player);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<CachedPlayer> getPlayersByName(Collection<String> names) {
+        Map<String, CachedPlayer> result = new HashMap<>();
+        for (String name : names) {
+            CachedPlayer player = getPlayer(name);
+            if (player != null) {
+                result.put(player.getName().toLowerCase(), player);
+            }
+        }
+        return result.values();
+    }
+
+    /**
+     * Searches all entries of the file, so it is much slower than the other lookups. The lock is only held while a
+     * block is copied, so writes and other lookups are not blocked by the search. Players added during the search are
+     * not found.
+     */
+    @Override
+    public List<CachedPlayer> searchPlayers(String partialName, int limit, int offset) {
+        int count;
+        synchronized (this) {
+            if (index == null) {
+                return Collections.emptyList();
+            }
+            count = totalEntries;
+        }
+        String lowerPartialName = partialName.toLowerCase();
+        long now = System.currentTimeMillis();
+        List<CachedPlayer> result = new ArrayList<>();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_DATA_LENGTH);
+        for (int blockIndex = 0; blockIndex * BLOCK_ENTRIES < count; blockIndex++) {
+            int entries = Math.min(BLOCK_ENTRIES, count - blockIndex * BLOCK_ENTRIES);
+            synchronized (this) {
+                if (index == null) {
+                    // closed
+                    return Collections.emptyList();
+                }
+                mapping.get((int) blockStart(blockIndex), block.array(), 0, entries * ENTRY_LENGTH);
+            }
+            for (int i = 0; i < entries; i++) {
+                int position = i * ENTRY_LENGTH;
+                if (block.getLong(position) != 0 || block.getLong(position + 8) != 0) {
+                    CachedPlayer player = readEntry(block, position, now);
+                    if (player.getName().toLowerCase().contains(lowerPartialName)) {
+                        result.add(player);
+                    }
+                }
+            }
+        }
+        result.sort(Comparator.comparingLong(CachedPlayer::getLastSeen).reversed());
+        int end = limit > 0 ? Math.min(result.size(), offset + limit) : result.size();
+        return offset >= end ? new ArrayList<>() : new ArrayList<>(result.subList(offset, end));
+    }
+
+    @Override
+    public void enableProfiles() {
+        // not supported
+    }
+
+    @Override
+    public void addOrUpdatePlayerProfile(CachedPlayerProfile entry) {
+        // not supported
+    }
+
+    @Override
+    public CachedPlayerProfile getPlayerProfile(UUID uuid) {
+        return null;
+    }
+
+    @Override
+    public int deleteOldPlayerProfiles() {
+        return 0;
+    }
+
+    @Override
+    public void addOrUpdateHistory(NameHistory history, Collection<NameChange> newChanges) {
+        // not supported
+    }
+
+    @Override
+    public NameHistory getNameHistory(UUID uuid) {
+        return null;
+    }
+
+    @Override
+    public Map<UUID, NameHistory> getNameHistories(Collection<UUID> uuids) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Set<UUID> getKnownUsersFromHistory(String name) {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public synchronized void close() {
         try {
+            if (loaded) {
+                finishWrite(true);
+            }
+            if (mapping != null) {
+                mapping.force();
+                if (index != null) {
+                    index.close(totalEntries);
+                    index = null;
+                }
+                mapping = null;
+                try {
+                    file.getChannel().truncate(blockStart((totalEntries + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES));
+                } catch (IOException e) {
+                    // some systems cannot truncate mapped files, the unused slots are ignored when loading
+                }
+            }
             file.close();
         } catch (IOException e) {
             plugin.getLogger().log(Level.SEVERE, "Error while trying to close the data file", e);
@@ -0,0 +1,240 @@
+package de.iani.playerUUIDCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A memory mapped hash index for the entries of a {@link BinaryStorage} file. It has one open addressing table for the
+ * UUIDs and one for the lowercase names. Each slot contains the index of an entry + 1 or 0 if it is empty, the keys are
+ * compared with the entries in the storage file. Slots for old names of renamed players stay in the table until it is
+ * rebuilt.
+ *
+ * The file starts with a header of 32 bytes: the version, 1 if the file was closed cleanly, the capacity of the tables,
+ * the number of storage file entries, the number of used UUID slots and the number of used name slots. An index that
+ * was not closed cleanly or that does not match the storage file is rebuilt.
+ */
+class BinaryStorageIndex {
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 32;
+    private static final int MIN_CAPACITY = 1024;
+    private final RandomAccessFile file;
+    private MappedByteBuffer mapping;
+    private int capacity;
+    private int usedUUIDSlots;
+    private int usedNameSlots;
+
+    BinaryStorageIndex(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Maps the index if it was closed cleanly and contains all entries of the storage file.
+     *
+     * @param dataEntries
+     *            the number of entries in the storage file
+     * @return false if the index must be rebuilt
+     */
+    boolean open(int dataEntries) throws IOException {
+        if (file.length() < HEADER_LENGTH) {
+            return false;
+        }
+        file.seek(0);
+        int version = file.readInt();
+        int clean = file.readInt();
+        int storedCapacity = file.readInt();
+        int storedEntries = file.readInt();
+        if (version != VERSION || clean != 1 || storedEntries != dataEntries || storedCapacity < MIN_CAPACITY || Integer.bitCount(storedCapacity) != 1 || file.length() != length(storedCapacity)) {
+            return false;
+        }
+        usedUUIDSlots = file.readInt();
+        usedNameSlots = file.readInt();
+        capacity = storedCapacity;
+        mapping = file.getChannel().map(MapMode.READ_WRITE, 0, length(capacity));
+        markOpen();
+        return true;
+    }
+
+    private static long length(int capacity) {
+        return HEADER_LENGTH + capacity * 8L;
+    }
+
+    /**
+     * Clears the clean flag, so the index is rebuilt if the server crashes before it is closed.
+     */
+    private void markOpen() {
+        mapping.putInt(0, VERSION);
+        mapping.putInt(4, 0);
+        mapping.force();
+    }
+
+    /**
+     * Inserts all entries of the storage file into new tables.
+     *
+     * @param data
+     *            the mapping of the storage file
+     * @param dataEntries
+     *            the number of entries in the storage file
+     */
+    void rebuild(ByteBuffer data, int dataEntries) throws IOException {
+        int newCapacity = MIN_CAPACITY;
+        while (newCapacity < dataEntries * 4L) {
+            newCapacity *= 2;
+        }
+        if (mapping == null || newCapacity != capacity) {
+            // the file is only shrunk if it is not mapped yet, some systems do not allow it for mapped files
+            if (mapping == null || file.length() < length(newCapacity)) {
+                file.setLength(length(newCapacity));
+            }
+            mapping = file.getChannel().map(MapMode.READ_WRITE, 0, length(newCapacity));
+        }
+        capacity = newCapacity;
+        for (int i = HEADER_LENGTH; i < length(capacity); i += 8) {
+            mapping.putLong(i, 0);
+        }
+        usedUUIDSlots = 0;
+        usedNameSlots = 0;
+        for (int entry = 0; entry < dataEntries; entry++) {
+            int position = (int) BinaryStorage.entryPosition(entry);
+            if (data.getLong(position) != 0 || data.getLong(position + 8) != 0) {
+                insertUUID(data, entry);
+                insertName(data, entry);
+            }
+        }
+        markOpen();
+    }
+
+    private int uuidSlot(int slot) {
+        return HEADER_LENGTH + slot * 4;
+    }
+
+    private int nameSlot(int slot) {
+        return HEADER_LENGTH + capacity * 4 + slot * 4;
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int hash(String name) {
+        return hash(name.hashCode(), 0);
+    }
+
+    /**
+     * Gets the lowercase name of an entry.
+     */
+    private static String readName(ByteBuffer data, int entry) {
+        return BinaryStorage.readName(data, (int) BinaryStorage.entryPosition(entry)).toLowerCase();
+    }
+
+    private void insertUUID(ByteBuffer data, int entry) {
+        int position = (int) BinaryStorage.entryPosition(entry);
+        int mask = capacity - 1;
+        int slot = hash(data.getLong(position), data.getLong(position + 8)) & mask;
+        while (mapping.getInt(uuidSlot(slot)) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mapping.putInt(uuidSlot(slot), entry + 1);
+        usedUUIDSlots++;
+    }
+
+    private void insertName(ByteBuffer data, int entry) {
+        int mask = capacity - 1;
+        int slot = hash(readName(data, entry)) & mask;
+        int value;
+        while ((value = mapping.getInt(nameSlot(slot))) != 0) {
+            if (value == entry + 1) {
+                // the player used this name before
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mapping.putInt(nameSlot(slot), entry + 1);
+        usedNameSlots++;
+    }
+
+    /**
+     * Adds a new entry of the storage file.
+     */
+    void addEntry(ByteBuffer data, int entry, int dataEntries) throws IOException {
+        if ((Math.max(usedUUIDSlots, usedNameSlots) + 1) * 2L > capacity) {
+            rebuild(data, dataEntries);
+            return;
+        }
+        insertUUID(data, entry);
+        insertName(data, entry);
+    }
+
+    /**
+     * Adds the current name of an entry whose name was changed.
+     */
+    void addName(ByteBuffer data, int entry, int dataEntries) throws IOException {
+        if ((usedNameSlots + 1) * 2L > capacity) {
+            rebuild(data, dataEntries);
+            return;
+        }
+        insertName(data, entry);
+    }
+
+    /**
+     * @return the index of the entry with the UUID, or -1 if there is none
+     */
+    int findUUID(ByteBuffer data, long msb, long lsb) {
+        int mask = capacity - 1;
+        for (int slot = hash(msb, lsb) & mask;; slot = (slot + 1) & mask) {
+            int value = mapping.getInt(uuidSlot(slot));
+            if (value == 0) {
+                return -1;
+            }
+            int position = (int) BinaryStorage.entryPosition(value - 1);
+            if (data.getLong(position) == msb && data.getLong(position + 8) == lsb) {
+                return value - 1;
+            }
+        }
+    }
+
+    /**
+     * @return the index of the entry with the name that was seen last, or -1 if there is none
+     */
+    int findName(ByteBuffer data, String name) {
+        String key = name.toLowerCase();
+        int best = -1;
+        long bestLastSeen = Long.MIN_VALUE;
+        int mask = capacity - 1;
+        for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+            int value = mapping.getInt(nameSlot(slot));
+            if (value == 0) {
+                return best;
+            }
+            int entry = value - 1;
+            if (readName(data, entry).equals(key)) {
+                long lastSeen = data.getLong((int) BinaryStorage.entryPosition(entry) + 32);
+                if (lastSeen > bestLastSeen) {
+                    best = entry;
+                    bestLastSeen = lastSeen;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the header and marks the index as clean. The storage file must be flushed before.
+     */
+    void close(int dataEntries) throws IOException {
+        if (mapping != null) {
+            mapping.putInt(8, capacity);
+            mapping.putInt(12, dataEntries);
+            mapping.putInt(16, usedUUIDSlots);
+            mapping.putInt(20, usedNameSlots);
+            mapping.force();
+            mapping.putInt(4, 1);
+            mapping.force();
+            mapping = null;
+        }
+        file.close();
+    }
+}
@@ -0,0 +1,252 @@
+package de.iani.playerUUIDCache;
+
+import de.iani.playerUUIDCache.NameHistory.NameChange;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A storage that keeps everything in memory and supports all operations. It is the reference implementation of
+ * {@link PlayerStorage} and can be used to test or benchmark the cache without a database. Searches and name history
+ * lookups by name scan all entries.
+ */
+public class InMemoryStorage implements PlayerStorage {
+    private static final int CHUNK_SIZE = 1000;
+
+    private final ConcurrentHashMap<UUID, CachedPlayer> players;
+
+    /**
+     * The UUIDs of the players by their lowercase names
+     */
+    private final ConcurrentHashMap<String, Set<UUID>> playersByName;
+
+    private final ConcurrentHashMap<UUID, CachedPlayerProfile> profiles;
+
+    private final ConcurrentHashMap<UUID, NameHistory> nameHistories;
+
+    private volatile boolean profilesEnabled;
+
+    public InMemoryStorage() {
+        players = new ConcurrentHashMap<>();
+        playersByName = new ConcurrentHashMap<>();
+        profiles = new ConcurrentHashMap<>();
+        nameHistories = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public boolean supportsLookups() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsNameHistories() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsProfiles() {
+        return true;
+    }
+
+    private static CachedPlayer copy(CachedPlayer player, long now) {
+        return new CachedPlayer(player.getUUID(), player.getName(), player.getLastSeen(), now);
+    }
+
+    @Override
+    public int loadAllPlayers(Consumer<CachedPlayer[]> chunkConsumer) {
+        long now = System.currentTimeMillis();
+        List<CachedPlayer> chunk = new ArrayList<>();
+        int count = 0;
+        for (CachedPlayer player : players.values()) {
+            chunk.add(copy(player, now));
+            if (chunk.size() == CHUNK_SIZE) {
+                chunkConsumer.accept(chunk.toArray(new CachedPlayer[chunk.size()]));
+                count += chunk.size();
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunkConsumer.accept(chunk.toArray(new CachedPlayer[chunk.size()]));
+            count += chunk.size();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void addOrUpdatePlayers(CachedPlayer... entries) {
+        for (CachedPlayer entry : entries) {
+            // writes are synchronized, so old is still the replaced entry
+            CachedPlayer old = players.get(entry.getUUID());
+            if (players.merge(entry.getUUID(), entry, (oldEntry, newEntry) -> oldEntry.getLastSeen() > newEntry.getLastSeen() ? oldEntry : newEntry) != entry) {
+                // an older entry must not replace a newer one
+                continue;
+            }
+            if (old != null && !old.getName().equalsIgnoreCase(entry.getName())) {
+                String oldName = old.getName().toLowerCase();
+                Set<UUID> uuids = playersByName.get(oldName);
+                if (uuids != null) {
+                    uuids.remove(entry.getUUID());
+                    if (uuids.isEmpty()) {
+                        playersByName.remove(oldName);
+                    }
+                }
+            }
+            playersByName.computeIfAbsent(entry.getName().toLowerCase(), name -> ConcurrentHashMap.newKeySet()).add(entry.getUUID());
+        }
+    }
+
+    @Override
+    public CachedPlayer getPlayer(UUID uuid) {
+        CachedPlayer player = players.get(uuid);
+        return player == null ? null : copy(player, System.currentTimeMillis());
+    }
+
+    @Override
+    public CachedPlayer getPlayer(String name) {
+        Set<UUID> uuids = playersByName.get(name.toLowerCase());
+        if (uuids == null) {
+            return null;
+        }
+        CachedPlayer newest = null;
+        for (UUID uuid : uuids) {
+            CachedPlayer player = players.get(uuid);
+            if (player != null && player.getName().equalsIgnoreCase(name) && (newest == null || player.getLastSeen() > newest.getLastSeen())) {
+                newest = player;
+            }
+        }
+        return newest == null ? null : copy(newest, System.currentTimeMillis());
+    }
+
+    @Override
+    public List<CachedPlayer> getPlayers(Collection<UUID> uuids) {
+        List<CachedPlayer> result = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            CachedPlayer player = getPlayer(uuid);
+            if (player != null) {
+                result.add(player);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<CachedPlayer> getPlayersByName(Collection<String> names) {
+        Map<String, CachedPlayer> result = new HashMap<>();
+        for (String name : names) {
+            CachedPlayer player = getPlayer(name);
+            if (player != null) {
+                result.put(player.getName().toLowerCase(), player);
+            }
+        }
+        return result.values();
+    }
+
+    @Override
+    public List<CachedPlayer> searchPlayers(String partialName, int limit, int offset) {
+        String lowerPartialName = partialName.toLowerCase();
+        long now = System.currentTimeMillis();
+        List<CachedPlayer> result = new ArrayList<>();
+        for (CachedPlayer player : players.values()) {
+            if (player.getName().toLowerCase().contains(lowerPartialName)) {
+                result.add(copy(player, now));
+            }
+        }
+        result.sort(Comparator.comparingLong(CachedPlayer::getLastSeen).reversed());
+        int end = limit > 0 ? Math.min(result.size(), offset + limit) : result.size();
+        return offset >= end ? new ArrayList<>() : new ArrayList<>(result.subList(offset, end));
+    }
+
+    @Override
+    public void enableProfiles() {
+        profilesEnabled = true;
+    }
+
+    @Override
+    public void addOrUpdatePlayerProfile(CachedPlayerProfile entry) {
+        if (profilesEnabled) {
+            profiles.put(entry.getUUID(), entry);
+        }
+    }
+
+    @Override
+    public CachedPlayerProfile getPlayerProfile(UUID uuid) {
+        CachedPlayerProfile profile = profilesEnabled ? profiles.get(uuid) : null;
+        return profile == null ? null : new CachedPlayerProfile(uuid, profile.getProperties(), profile.getLastSeen(), System.currentTimeMillis());
+    }
+
+    @Override
+    public int deleteOldPlayerProfiles() {
+        long minLastSeen = System.currentTimeMillis() - PlayerUUIDCache.PROFILE_PROPERTIES_CACHE_EXPIRATION_TIME * 2;
+        int sizeBefore = profiles.size();
+        profiles.values().removeIf(profile -> profile.getLastSeen() < minLastSeen);
+        return Math.max(0, sizeBefore - profiles.size());
+    }
+
+    @Override
+    public void addOrUpdateHistory(NameHistory history, Collection<NameChange> newChanges) {
+        nameHistories.put(history.getUUID(), history);
+    }
+
+    @Override
+    public NameHistory getNameHistory(UUID uuid) {
+        NameHistory history = nameHistories.get(uuid);
+        return history == null ? null : new NameHistory(uuid, history.getFirstName(), history.getNameChanges(), System.currentTimeMillis());
+    }
+
+    @Override
+    public Map<UUID, NameHistory> getNameHistories(Collection<UUID> uuids) {
+        Map<UUID, NameHistory> result = new HashMap<>();
+        for (UUID uuid : uuids) {
+            NameHistory history = getNameHistory(uuid);
+            if (history != null) {
+                result.put(uuid, history);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<UUID> getKnownUsersFromHistory(String name) {
+        // the same order as the database: the first name counts as date 0, the current name as the last seen time
+        Map<UUID, Long> dates = new HashMap<>();
+        for (NameHistory history : nameHistories.values()) {
+            if (history.getFirstName().equalsIgnoreCase(name)) {
+                dates.merge(history.getUUID(), 0L, Math::max);
+            }
+            for (NameChange change : history.getNameChanges()) {
+                if (change.getNewName().equalsIgnoreCase(name)) {
+                    dates.merge(history.getUUID(), change.getDate(), Math::max);
+                }
+            }
+        }
+        Set<UUID> uuids = playersByName.get(name.toLowerCase());
+        if (uuids != null) {
+            for (UUID uuid : uuids) {
+                CachedPlayer player = players.get(uuid);
+                if (player != null) {
+                    dates.merge(uuid, player.getLastSeen(), Math::max);
+                }
+            }
+        }
+        List<Map.Entry<UUID, Long>> entries = new ArrayList<>(dates.entrySet());
+        entries.sort(Map.Entry.<UUID, Long> comparingByValue().reversed());
+        Set<UUID> result = new LinkedHashSet<>();
+        for (Map.Entry<UUID, Long> e : entries) {
+            result.add(e.getKey());
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+}
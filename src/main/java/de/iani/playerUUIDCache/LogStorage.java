@@ -0,0 +1,523 @@
+package de.iani.playerUUIDCache;
+
+import de.iani.playerUUIDCache.NameHistory.NameChange;
+import de.iani.playerUUIDCache.util.collections.UUIDIntMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+/**
+ * A log structured storage for players only. It does not support lookups, all players are loaded at the start.
+ *
+ * Updates are appended to a log file and synced to the disk before addOrUpdatePlayers returns. Writers that arrive
+ * while a sync is running are synced together by the next one (group commit). When the share of outdated records in the
+ * snapshot and the log exceeds the garbage ratio, a background thread starts a new log and writes all players to a new
+ * snapshot. Older logs are deleted when the snapshot is complete. At the start the snapshot and all following logs are
+ * replayed.
+ *
+ * Each record has the 40 byte entry format of {@link BinaryStorage} followed by its CRC32C. The snapshot file starts
+ * with a header of 24 bytes: the version, the number of records, the generation of the first log that is not contained
+ * in the snapshot, the CRC32C of these values and 4 unused bytes. Damaged records at the end of a log are the result
+ * of an interrupted write, the log is truncated after the last valid record. Damaged records before it are skipped.
+ * Records are only applied if they are not older than the current entry of the player, so concurrent updates can be
+ * appended in any order.
+ */
+public class LogStorage implements PlayerStorage {
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 24;
+    private static final int ENTRY_LENGTH = BinaryStorage.ENTRY_LENGTH;
+    private static final int RECORD_LENGTH = ENTRY_LENGTH + 4;
+    private static final int CHUNK_SIZE = 1000;
+    /**
+     * Compactions only start if there are at least this many outdated records
+     */
+    private static final int MIN_GARBAGE_RECORDS = 10000;
+    private static final Pattern LOG_FILE_PATTERN = Pattern.compile("players-(\\d+)\\.log");
+    private final PlayerUUIDCache plugin;
+    private final double compactionGarbageRatio;
+    private final UUIDIntMap slots;
+    private final CRC32C crc;
+    /**
+     * Held while the log is synced, always locked before this storage
+     */
+    private final Object syncLock;
+    private final Object compactionLock;
+    /**
+     * The current entries of all players
+     */
+    private byte[] entries;
+    private int entryCount;
+    private ByteBuffer appendBuffer;
+    private FileChannel log;
+    private long logGeneration;
+    private long logRecords;
+    private long snapshotRecords;
+    private long writeSequence;
+    private long syncedSequence;
+    private boolean compacting;
+    private boolean loaded;
+    private boolean closed;
+
+    /**
+     * Creates the storage. The files are opened by {@link #loadAllPlayers(Consumer)}.
+     *
+     * @param compactionGarbageRatio
+     *            the share of outdated records in the snapshot and the log that starts a compaction
+     */
+    public LogStorage(PlayerUUIDCache plugin, double compactionGarbageRatio) {
+        this.plugin = plugin;
+        this.compactionGarbageRatio = compactionGarbageRatio;
+        slots = new UUIDIntMap();
+        crc = new CRC32C();
+        syncLock = new Object();
+        compactionLock = new Object();
+        entries = new byte[CHUNK_SIZE * ENTRY_LENGTH];
+        appendBuffer = ByteBuffer.allocate(RECORD_LENGTH);
+    }
+
+    public static File getSnapshotFile(PlayerUUIDCache plugin) {
+        return new File(plugin.getDataFolder(), "players.snapshot");
+    }
+
+    private File getLogFile(long generation) {
+        return new File(plugin.getDataFolder(), "players-" + generation + ".log");
+    }
+
+    @Override
+    public boolean supportsLookups() {
+        return false;
+    }
+
+    @Override
+    public boolean supportsNameHistories() {
+        return false;
+    }
+
+    @Override
+    public boolean supportsProfiles() {
+        return false;
+    }
+
+    @Override
+    public synchronized int loadAllPlayers(Consumer<CachedPlayer[]> chunkConsumer) throws StorageException {
+        if (loaded) {
+            throw new IllegalStateException("loadAllPlayers can only be called once");
+        }
+        try {
+            readSnapshot();
+            replayLogs();
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+        loaded = true;
+        long now = System.currentTimeMillis();
+        ByteBuffer bb = ByteBuffer.wrap(entries);
+        for (int start = 0; start < entryCount; start += CHUNK_SIZE) {
+            CachedPlayer[] players = new CachedPlayer[Math.min(CHUNK_SIZE, entryCount - start)];
+            for (int i = 0; i < players.length; i++) {
+                players[i] = BinaryStorage.readEntry(bb, (start + i) * ENTRY_LENGTH, now);
+            }
+            chunkConsumer.accept(players);
+        }
+        startCompactionIfNeeded();
+        return entryCount;
+    }
+
+    private void readSnapshot() throws IOException {
+        File file = getSnapshotFile(plugin);
+        if (!file.isFile()) {
+            return;
+        }
+        byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        if (data.length < HEADER_LENGTH || checksum(crc, data, 0, 16) != bb.getInt(16)) {
+            throw new IOException("The header of the snapshot file is damaged");
+        }
+        int version = bb.getInt(0);
+        if (version != VERSION) {
+            throw new IOException("Invalid snapshot file version: " + version);
+        }
+        int count = bb.getInt(4);
+        logGeneration = bb.getLong(8);
+        int damaged = 0;
+        for (int i = 0; i < count; i++) {
+            int position = HEADER_LENGTH + i * RECORD_LENGTH;
+            if (position + RECORD_LENGTH > data.length) {
+                damaged += count - i;
+                break;
+            }
+            if (!applyRecord(bb, position)) {
+                damaged++;
+            }
+        }
+        if (damaged > 0) {
+            plugin.getLogger().warning(damaged + " records of the snapshot file are damaged, some players may be missing or outdated");
+        }
+        snapshotRecords = count;
+    }
+
+    private void replayLogs() throws IOException {
+        TreeMap<Long, File> logs = new TreeMap<>();
+        File[] files = plugin.getDataFolder().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = LOG_FILE_PATTERN.matcher(file.getName());
+                if (matcher.matches()) {
+                    long generation = Long.parseLong(matcher.group(1));
+                    if (generation < logGeneration) {
+                        // left over by a compaction that was interrupted after writing the snapshot
+                        file.delete();
+                    } else {
+                        logs.put(generation, file);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Long, File> e : logs.entrySet()) {
+            File file = e.getValue();
+            byte[] data = Files.readAllBytes(file.toPath());
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            // the end of the last valid record, damaged records before it are skipped
+            int end = 0;
+            int damaged = 0;
+            for (int position = 0; position + RECORD_LENGTH <= data.length; position += RECORD_LENGTH) {
+                if (applyRecord(bb, position)) {
+                    damaged += (position - end) / RECORD_LENGTH;
+                    end = position + RECORD_LENGTH;
+                }
+            }
+            logRecords += end / RECORD_LENGTH;
+            if (damaged > 0) {
+                plugin.getLogger().warning(damaged + " records of the log file " + file.getName() + " are damaged, some players may be missing or outdated");
+            }
+            if (end < data.length) {
+                plugin.getLogger().warning("The log file " + file.getName() + " ends with an incomplete or damaged record, it is truncated after " + end / RECORD_LENGTH + " records");
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(end);
+                    channel.force(false);
+                }
+            }
+            logGeneration = e.getKey();
+        }
+        log = openLog(logGeneration);
+    }
+
+    private FileChannel openLog(long generation) throws IOException {
+        return FileChannel.open(getLogFile(generation).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static int checksum(CRC32C crc, byte[] data, int offset, int length) {
+        crc.reset();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Stores the entry of a record if its checksum is valid.
+     *
+     * @return false if the record is damaged
+     */
+    private boolean applyRecord(ByteBuffer bb, int position) {
+        if (checksum(crc, bb.array(), position, ENTRY_LENGTH) != bb.getInt(position + ENTRY_LENGTH)) {
+            return false;
+        }
+        storeEntry(bb, position);
+        return true;
+    }
+
+    private void storeEntry(ByteBuffer bb, int position) {
+        long msb = bb.getLong(position);
+        long lsb = bb.getLong(position + 8);
+        int slot = slots.get(msb, lsb);
+        if (slot >= 0 && isNewer(slot, bb.getLong(position + 32))) {
+            return;
+        }
+        if (slot < 0) {
+            slot = entryCount++;
+            slots.put(msb, lsb, slot);
+            if (entries.length < entryCount * ENTRY_LENGTH) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+        }
+        System.arraycopy(bb.array(), position, entries, slot * ENTRY_LENGTH, ENTRY_LENGTH);
+    }
+
+    /**
+     * @return true if the stored entry in the slot was seen later than the given time
+     */
+    private boolean isNewer(int slot, long lastSeen) {
+        return ByteBuffer.wrap(entries).getLong(slot * ENTRY_LENGTH + 32) > lastSeen;
+    }
+
+    @Override
+    public void addOrUpdatePlayers(CachedPlayer... players) throws StorageException {
+        if (players.length == 0) {
+            return;
+        }
+        long sequence;
+        try {
+            synchronized (this) {
+                if (!loaded) {
+                    throw new IllegalStateException("loadAllPlayers must be called first");
+                }
+                if (closed || log == null) {
+                    throw new StorageException("The storage is closed");
+                }
+                int length = players.length * RECORD_LENGTH;
+                if (appendBuffer.capacity() < length) {
+                    appendBuffer = ByteBuffer.allocate(length);
+                }
+                appendBuffer.clear();
+                int records = 0;
+                for (CachedPlayer player : players) {
+                    if (!BinaryStorage.canStoreName(player.getName())) {
+                        plugin.getLogger().warning("The name of the player " + player.getUUID() + " cannot be stored: " + player.getName());
+                        continue;
+                    }
+                    int slot = slots.get(player.getUUID());
+                    if (slot >= 0 && isNewer(slot, player.getLastSeen())) {
+                        continue;
+                    }
+                    int position = records * RECORD_LENGTH;
+                    BinaryStorage.writeEntry(appendBuffer, position, player);
+                    appendBuffer.putInt(position + ENTRY_LENGTH, checksum(crc, appendBuffer.array(), position, ENTRY_LENGTH));
+                    records++;
+                }
+                appendBuffer.limit(records * RECORD_LENGTH);
+                long logSize = log.size();
+                try {
+                    while (appendBuffer.hasRemaining()) {
+                        log.write(appendBuffer);
+                    }
+                } catch (IOException e) {
+                    // a partial record would hide all records appended after it
+                    log.truncate(logSize);
+                    throw e;
+                }
+                // only now, so the entries never contain records that are not in the log
+                for (int i = 0; i < records; i++) {
+                    storeEntry(appendBuffer, i * RECORD_LENGTH);
+                }
+                logRecords += records;
+                sequence = ++writeSequence;
+                startCompactionIfNeeded();
+            }
+            sync(sequence);
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    /**
+     * Syncs the log to the disk if the write with the given sequence number was not synced yet. All writes that were
+     * appended before are synced together.
+     */
+    private void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSequence >= sequence) {
+                return;
+            }
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                if (closed) {
+                    // the log was synced when it was closed
+                    return;
+                }
+                target = writeSequence;
+                channel = log;
+            }
+            channel.force(false);
+            syncedSequence = target;
+        }
+    }
+
+    private void startCompactionIfNeeded() {
+        long records = snapshotRecords + logRecords;
+        long garbage = records - entryCount;
+        if (!compacting && garbage >= MIN_GARBAGE_RECORDS && garbage > records * compactionGarbageRatio) {
+            compacting = true;
+            Thread thread = new Thread(this::compact, "PlayerUUIDCache log compaction");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void compact() {
+        synchronized (compactionLock) {
+            try {
+                long start = System.currentTimeMillis();
+                byte[] data;
+                int count;
+                long generation;
+                synchronized (syncLock) {
+                    synchronized (this) {
+                        if (closed) {
+                            return;
+                        }
+                        data = Arrays.copyOf(entries, entryCount * ENTRY_LENGTH);
+                        count = entryCount;
+                        // all later writes go to a new log that is replayed after the snapshot
+                        generation = logGeneration + 1;
+                        FileChannel newLog = openLog(generation);
+                        log.force(false);
+                        log.close();
+                        log = newLog;
+                        logGeneration = generation;
+                        logRecords = 0;
+                        syncedSequence = writeSequence;
+                    }
+                }
+                writeSnapshot(data, count, generation);
+                synchronized (this) {
+                    snapshotRecords = count;
+                }
+                for (long old = generation - 1; old >= 0 && getLogFile(old).delete(); old--) {
+                }
+                plugin.getLogger().info("Compacted the storage log to " + count + " players in " + (System.currentTimeMillis() - start) + "ms");
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error while trying to compact the storage log", e);
+            } finally {
+                synchronized (this) {
+                    compacting = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a new snapshot file and moves it over the old one, so the old snapshot stays intact if this fails.
+     */
+    private void writeSnapshot(byte[] data, int count, long generation) throws IOException {
+        CRC32C snapshotCrc = new CRC32C();
+        File target = getSnapshotFile(plugin);
+        File temp = new File(target.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            byte[] header = new byte[HEADER_LENGTH];
+            ByteBuffer bb = ByteBuffer.wrap(header);
+            bb.putInt(0, VERSION);
+            bb.putInt(4, count);
+            bb.putLong(8, generation);
+            bb.putInt(16, checksum(snapshotCrc, header, 0, 16));
+            out.write(header);
+            byte[] chunk = new byte[CHUNK_SIZE * RECORD_LENGTH];
+            ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
+            for (int start = 0; start < count; start += CHUNK_SIZE) {
+                int records = Math.min(CHUNK_SIZE, count - start);
+                for (int i = 0; i < records; i++) {
+                    System.arraycopy(data, (start + i) * ENTRY_LENGTH, chunk, i * RECORD_LENGTH, ENTRY_LENGTH);
+                    chunkBuffer.putInt(i * RECORD_LENGTH + ENTRY_LENGTH, checksum(snapshotCrc, chunk, i * RECORD_LENGTH, ENTRY_LENGTH));
+                }
+                out.write(chunk, 0, records * RECORD_LENGTH);
+            }
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public CachedPlayer getPlayer(UUID uuid) {
+        return null;
+    }
+
+    @Override
+    public CachedPlayer getPlayer(String name) {
+        return null;
+    }
+
+    @Override
+    public List<CachedPlayer> getPlayers(Collection<UUID> uuids) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Collection<CachedPlayer> getPlayersByName(Collection<String> names) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<CachedPlayer> searchPlayers(String partialName, int limit, int offset) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void enableProfiles() {
+        // not supported
+    }
+
+    @Override
+    public void addOrUpdatePlayerProfile(CachedPlayerProfile entry) {
+        // not supported
+    }
+
+    @Override
+    public CachedPlayerProfile getPlayerProfile(UUID uuid) {
+        return null;
+    }
+
+    @Override
+    public int deleteOldPlayerProfiles() {
+        return 0;
+    }
+
+    @Override
+    public void addOrUpdateHistory(NameHistory history, Collection<NameChange> newChanges) {
+        // not supported
+    }
+
+    @Override
+    public NameHistory getNameHistory(UUID uuid) {
+        return null;
+    }
+
+    @Override
+    public Map<UUID, NameHistory> getNameHistories(Collection<UUID> uuids) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Set<UUID> getKnownUsersFromHistory(String name) {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void close() {
+        // waits for a running compaction
+        synchronized (compactionLock) {
+            synchronized (syncLock) {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    if (log != null) {
+                        try {
+                            log.force(false);
+                            log.close();
+                        } catch (IOException e) {
+                            plugin.getLogger().log(Level.SEVERE, "Error while trying to close the log file", e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
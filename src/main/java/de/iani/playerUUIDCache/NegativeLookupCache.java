@@ -0,0 +1,85 @@
+package de.iani.playerUUIDCache;
+
+import de.iani.playerUUIDCache.util.cache.BoundedCache;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers for a limited time that a name or UUID could not be found, so repeated lookups for unknown players do not
+ * cause a query each time.
+ *
+ * A lookup reads the generation before it queries and passes it to markAbsent. If a player was added in the meantime,
+ * the key is not marked, so a lookup that missed cannot hide a player that was added while it was running.
+ */
+public class NegativeLookupCache {
+    private static final long ENTRY_SIZE = 200;
+
+    private final long expirationTime;
+
+    private final BoundedCache<Object, Long> entries;
+
+    private final AtomicLong generation;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param expirationTime
+     *            the time in ms for which a key is considered absent, 0 disables this cache
+     * @param maxEntries
+     *            the maximum number of remembered keys
+     */
+    public NegativeLookupCache(long expirationTime, long maxEntries) {
+        this.expirationTime = expirationTime;
+        this.entries = expirationTime > 0 ? new BoundedCache<>(maxEntries, 0, expiration -> ENTRY_SIZE, expiration -> expiration <= System.currentTimeMillis()) : null;
+        this.generation = new AtomicLong();
+    }
+
+    /**
+     * @return the generation that must be passed to markAbsent, incremented by every invalidation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public boolean isAbsent(UUID uuid) {
+        return entries != null && entries.get(uuid) != null;
+    }
+
+    public boolean isAbsent(String name) {
+        return entries != null && entries.get(name.toLowerCase()) != null;
+    }
+
+    public void markAbsent(UUID uuid, long lookupGeneration) {
+        mark(uuid, lookupGeneration);
+    }
+
+    public void markAbsent(String name, long lookupGeneration) {
+        mark(name.toLowerCase(), lookupGeneration);
+    }
+
+    private void mark(Object key, long lookupGeneration) {
+        if (entries != null) {
+            Long expiration = System.currentTimeMillis() + expirationTime;
+            entries.put(key, expiration);
+            // an invalidation since the lookup may have been for this key and may have run before the put
+            if (generation.get() != lookupGeneration) {
+                entries.remove(key, expiration);
+            }
+        }
+    }
+
+    public void invalidate(CachedPlayer player) {
+        if (entries != null) {
+            generation.incrementAndGet();
+            // usually nothing is cached, especially while all players are loaded
+            if (entries.size() > 0) {
+                entries.remove(player.getUUID());
+                entries.remove(player.getName().toLowerCase());
+            }
+        }
+    }
+
+    public int size() {
+        return entries != null ? entries.size() : 0;
+    }
+}
@@ -0,0 +1,256 @@
+package de.iani.playerUUIDCache;
+
+import de.iani.playerUUIDCache.util.cache.CachePolicy;
+import de.iani.playerUUIDCache.util.collections.CompactNames;
+import de.iani.playerUUIDCache.util.collections.ConcurrentNameMap;
+import de.iani.playerUUIDCache.util.collections.ConcurrentUUIDMap;
+import de.iani.playerUUIDCache.util.collections.TrigramIndex;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * The in memory index of all cached players, by UUID and by case insensitive name.
+ * Reads never block. Concurrent updates for the same player are resolved so that the entry with the newest lastSeen wins.
+ * The index may be limited in size, in this case the least valuable entries are evicted.
+ *
+ * Players are stored as compact {@link PlayerRecord}s that are shared by both maps, the returned CachedPlayers are
+ * created on demand. Optionally the names are indexed by trigrams for searching by partial names.
+ */
+public class PlayerIndex {
+    /**
+     * Estimated heap usage of an entry without its name: the record, the name array header, the slots in both maps
+     * and the bookkeeping of the eviction policy.
+     */
+    private static final long ENTRY_OVERHEAD = 160;
+
+    private final ConcurrentUUIDMap<PlayerRecord> playersByUUID;
+
+    private final ConcurrentNameMap<PlayerRecord> playersByName;
+
+    private final TrigramIndex<PlayerRecord> nameSearchIndex;
+
+    private final long expirationTime;
+
+    private final CachePolicy<UUID, PlayerRecord> policy;
+
+    /**
+     * Creates a new index.
+     *
+     * @param expirationTime
+     *            the time in ms after which entries are not returned anymore, or -1 if they never expire
+     * @param maxEntries
+     *            the maximum number of entries, or 0 for no limit
+     * @param maxBytes
+     *            the maximum estimated size of all entries in bytes, or 0 for no limit
+     * @param indexNames
+     *            if the names should be indexed for {@link #searchByPartialName(String, int)}
+     */
+    public PlayerIndex(long expirationTime, long maxEntries, long maxBytes, boolean indexNames) {
+        playersByUUID = new ConcurrentUUIDMap<>();
+        playersByName = new ConcurrentNameMap<>(PlayerRecord::getName);
+        nameSearchIndex = indexNames ? new TrigramIndex<>(PlayerRecord::getName, this::isCurrent) : null;
+        this.expirationTime = expirationTime;
+        policy = new CachePolicy<>(maxEntries, maxBytes, this::evict);
+    }
+
+    public CachedPlayer get(UUID uuid) {
+        PlayerRecord entry = playersByUUID.get(uuid);
+        if (entry != null && isExpired(entry)) {
+            remove(uuid, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            policy.recordMiss(uuid);
+            return null;
+        }
+        policy.recordHit(uuid);
+        return entry.toCachedPlayer();
+    }
+
+    public CachedPlayer get(String name) {
+        PlayerRecord entry = playersByName.get(name);
+        if (entry != null && !isCurrent(entry)) {
+            // the name map is updated after the UUID map, a concurrent rename can leave an outdated record here
+            PlayerRecord current = playersByUUID.get(entry.getUUIDMost(), entry.getUUIDLeast());
+            entry = current != null && CompactNames.equalsIgnoreCase(current.getName(), entry.getName()) ? current : null;
+        }
+        if (entry != null && isExpired(entry)) {
+            remove(entry.getUUID(), entry);
+            entry = null;
+        }
+        if (entry == null) {
+            policy.recordMiss();
+            return null;
+        }
+        CachedPlayer player = entry.toCachedPlayer();
+        policy.recordHit(player.getUUID());
+        return player;
+    }
+
+    /**
+     * Finds the players whose name contains the given part, ignoring the case. Only the returned players are decoded.
+     *
+     * @param partialName
+     *            the part of the name
+     * @param limit
+     *            the maximum number of results, or 0 for no limit
+     * @return the matching players, the most recently seen first
+     */
+    public List<CachedPlayer> searchByPartialName(String partialName, int limit) {
+        Comparator<PlayerRecord> order = Comparator.comparingLong(PlayerRecord::getLastSeen);
+        PriorityQueue<PlayerRecord> best = limit > 0 ? new PriorityQueue<>(order) : null;
+        List<PlayerRecord> all = limit > 0 ? null : new ArrayList<>();
+        Consumer<PlayerRecord> collector = entry -> {
+            if (isExpired(entry)) {
+                return;
+            }
+            if (all != null) {
+                all.add(entry);
+            } else if (best.size() < limit) {
+                best.add(entry);
+            } else if (best.peek().getLastSeen() < entry.getLastSeen()) {
+                best.poll();
+                best.add(entry);
+            }
+        };
+        if (nameSearchIndex != null && partialName.length() >= TrigramIndex.MIN_QUERY_LENGTH) {
+            nameSearchIndex.forEachMatch(partialName, collector);
+        } else {
+            for (PlayerRecord entry : playersByUUID.values()) {
+                if (CompactNames.containsIgnoreCase(entry.getName(), partialName)) {
+                    collector.accept(entry);
+                }
+            }
+        }
+        List<PlayerRecord> matches = all != null ? all : new ArrayList<>(best);
+        matches.sort(order.reversed());
+        List<CachedPlayer> result = new ArrayList<>(matches.size());
+        for (PlayerRecord entry : matches) {
+            result.add(entry.toCachedPlayer());
+        }
+        return result;
+    }
+
+    public int size() {
+        return playersByUUID.size();
+    }
+
+    public CachePolicy<UUID, PlayerRecord> getPolicy() {
+        return policy;
+    }
+
+    private boolean isCurrent(PlayerRecord entry) {
+        return playersByUUID.get(entry.getUUIDMost(), entry.getUUIDLeast()) == entry;
+    }
+
+    private boolean isExpired(PlayerRecord entry) {
+        return expirationTime != -1 && entry.getCacheLoadTime() + expirationTime <= System.currentTimeMillis();
+    }
+
+    public void update(CachedPlayer player) {
+        UUID uuid = player.getUUID();
+        PlayerRecord oldEntry;
+        PlayerRecord entry;
+        boolean replaced;
+        while (true) {
+            oldEntry = playersByUUID.get(uuid);
+            entry = new PlayerRecord(player, oldEntry);
+            if (oldEntry == null) {
+                if (playersByUUID.putIfAbsent(uuid, entry) == null) {
+                    replaced = true;
+                    break;
+                }
+                continue;
+            }
+            if (oldEntry.getLastSeen() > entry.getLastSeen()) {
+                replaced = false;
+                break;
+            }
+            if (playersByUUID.replace(uuid, oldEntry, entry)) {
+                replaced = true;
+                break;
+            }
+        }
+        if (replaced && oldEntry != null && !CompactNames.equalsIgnoreCase(oldEntry.getName(), entry.getName())) {
+            playersByName.removeIf(oldEntry.getName(), nameEntry -> nameEntry.hasUUID(uuid));
+        }
+        playersByName.merge(entry, (oldNameEntry, newEntry) -> oldNameEntry.getLastSeen() <= newEntry.getLastSeen() ? newEntry : oldNameEntry);
+        if (replaced) {
+            policy.recordWrite(uuid, entry, ENTRY_OVERHEAD + entry.getName().length);
+            if (nameSearchIndex != null) {
+                if (oldEntry != null) {
+                    nameSearchIndex.invalidated();
+                }
+                nameSearchIndex.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Updates many players like {@link #update(CachedPlayer)}, but locks the maps only once. This is used to load many
+     * players from several threads at once.
+     */
+    public void updateAll(CachedPlayer... players) {
+        UUID[] uuids = new UUID[players.length];
+        PlayerRecord[] entries = new PlayerRecord[players.length];
+        PlayerRecord[] oldEntries = new PlayerRecord[players.length];
+        for (int i = 0; i < players.length; i++) {
+            uuids[i] = players[i].getUUID();
+            entries[i] = new PlayerRecord(players[i], null);
+        }
+        playersByUUID.mergeAll(uuids, entries, (oldEntry, entry) -> oldEntry.getLastSeen() > entry.getLastSeen() ? oldEntry : entry, oldEntries);
+        int[] replaced = new int[players.length];
+        int replacedCount = 0;
+        int invalidated = 0;
+        for (int i = 0; i < players.length; i++) {
+            PlayerRecord oldEntry = oldEntries[i];
+            if (oldEntry != null && oldEntry.getLastSeen() > entries[i].getLastSeen()) {
+                continue;
+            }
+            if (oldEntry != null) {
+                invalidated++;
+                if (!CompactNames.equalsIgnoreCase(oldEntry.getName(), entries[i].getName())) {
+                    UUID uuid = uuids[i];
+                    playersByName.removeIf(oldEntry.getName(), nameEntry -> nameEntry.hasUUID(uuid));
+                }
+            }
+            replaced[replacedCount++] = i;
+        }
+        playersByName.mergeAll(entries, (oldNameEntry, newEntry) -> oldNameEntry.getLastSeen() <= newEntry.getLastSeen() ? newEntry : oldNameEntry);
+        List<PlayerRecord> added = new ArrayList<>(replacedCount);
+        for (int j = 0; j < replacedCount; j++) {
+            int i = replaced[j];
+            policy.recordWrite(uuids[i], entries[i], ENTRY_OVERHEAD + entries[i].getName().length);
+            added.add(entries[i]);
+        }
+        if (nameSearchIndex != null) {
+            for (int i = 0; i < invalidated; i++) {
+                nameSearchIndex.invalidated();
+            }
+            nameSearchIndex.addAll(added);
+        }
+    }
+
+    private void remove(UUID uuid, PlayerRecord entry) {
+        if (playersByUUID.remove(uuid, entry)) {
+            policy.recordRemoval(uuid);
+            if (nameSearchIndex != null) {
+                nameSearchIndex.invalidated();
+            }
+        }
+        playersByName.remove(entry);
+    }
+
+    private void evict(UUID uuid, PlayerRecord entry) {
+        if (playersByUUID.remove(uuid, entry)) {
+            playersByName.removeIf(entry.getName(), nameEntry -> nameEntry.hasUUID(uuid));
+            if (nameSearchIndex != null) {
+                nameSearchIndex.invalidated();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package de.iani.playerUUIDCache;
+
+import de.iani.playerUUIDCache.util.collections.CompactNames;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The compact form of a {@link CachedPlayer} that is kept in the {@link PlayerIndex}. The UUID is stored as two longs
+ * and the name as encoded bytes (see {@link CompactNames}). CachedPlayer objects are only created when requested.
+ */
+final class PlayerRecord {
+    private final long uuidMost;
+
+    private final long uuidLeast;
+
+    private final byte[] name;
+
+    private final long lastSeen;
+
+    private final long cacheLoadTime;
+
+    PlayerRecord(CachedPlayer player, PlayerRecord previous) {
+        UUID uuid = player.getUUID();
+        this.uuidMost = uuid.getMostSignificantBits();
+        this.uuidLeast = uuid.getLeastSignificantBits();
+        byte[] encoded = CompactNames.encode(player.getName());
+        // reuse the name bytes of the previous record if the name did not change
+        this.name = previous != null && Arrays.equals(previous.name, encoded) ? previous.name : encoded;
+        this.lastSeen = player.getLastSeen();
+        this.cacheLoadTime = player.getCacheLoadTime();
+    }
+
+    boolean hasUUID(UUID uuid) {
+        return uuidMost == uuid.getMostSignificantBits() && uuidLeast == uuid.getLeastSignificantBits();
+    }
+
+    long getUUIDMost() {
+        return uuidMost;
+    }
+
+    long getUUIDLeast() {
+        return uuidLeast;
+    }
+
+    UUID getUUID() {
+        return new UUID(uuidMost, uuidLeast);
+    }
+
+    byte[] getName() {
+        return name;
+    }
+
+    long getLastSeen() {
+        return lastSeen;
+    }
+
+    long getCacheLoadTime() {
+        return cacheLoadTime;
+    }
+
+    CachedPlayer toCachedPlayer() {
+        return new CachedPlayer(getUUID(), CompactNames.decode(name), lastSeen, cacheLoadTime);
+    }
+}
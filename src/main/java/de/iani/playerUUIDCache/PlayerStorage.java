@@ -0,0 +1,160 @@
+package de.iani.playerUUIDCache;
+
+import de.iani.playerUUIDCache.NameHistory.NameChange;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * A persistent storage for players, name histories and player profiles. All methods may block and must be thread
+ * safe. Storages that do not support lookups, name histories or profiles return no results for them and ignore
+ * updates.
+ */
+public interface PlayerStorage {
+    /**
+     * A storage operation for the async variants.
+     */
+    @FunctionalInterface
+    public interface StorageCall<T> {
+        public T call() throws StorageException;
+    }
+
+    /**
+     * Checks if players can be looked up. If not, all players are loaded with {@link #loadAllPlayers(Consumer)} and
+     * kept in memory.
+     *
+     * @return true if the lookup methods are supported
+     */
+    public boolean supportsLookups();
+
+    public boolean supportsNameHistories();
+
+    public boolean supportsProfiles();
+
+    /**
+     * Passes all stored players in chunks to the consumer. The consumer may be called from several threads at once.
+     *
+     * @param chunkConsumer
+     *            receives the loaded players
+     * @return the number of loaded players
+     */
+    public int loadAllPlayers(Consumer<CachedPlayer[]> chunkConsumer) throws StorageException;
+
+    public void addOrUpdatePlayers(CachedPlayer... entries) throws StorageException;
+
+    public CachedPlayer getPlayer(UUID uuid) throws StorageException;
+
+    /**
+     * Gets a player by name. If there are several players with the same name, the player seen last is returned.
+     */
+    public CachedPlayer getPlayer(String name) throws StorageException;
+
+    public List<CachedPlayer> getPlayers(Collection<UUID> uuids) throws StorageException;
+
+    /**
+     * Gets many players by their names. If there are several players with the same name, the player seen last is
+     * returned.
+     */
+    public Collection<CachedPlayer> getPlayersByName(Collection<String> names) throws StorageException;
+
+    /**
+     * Searches for players whose names contain the given string.
+     *
+     * @param partialName
+     *            a part of a name
+     * @param limit
+     *            the maximum number of results, or 0 for no limit
+     * @param offset
+     *            the number of results to skip
+     * @return the players, the most recently seen first
+     */
+    public List<CachedPlayer> searchPlayers(String partialName, int limit, int offset) throws StorageException;
+
+    /**
+     * Prepares the storage of profiles. Profiles are ignored until this was called.
+     */
+    public void enableProfiles() throws StorageException;
+
+    public void addOrUpdatePlayerProfile(CachedPlayerProfile entry) throws StorageException;
+
+    public CachedPlayerProfile getPlayerProfile(UUID uuid) throws StorageException;
+
+    /**
+     * Deletes profiles that were not seen for twice the profile cache expiration time.
+     *
+     * @return the number of deleted profiles, or -1 if the run was skipped
+     */
+    public int deleteOldPlayerProfiles() throws StorageException;
+
+    /**
+     * Stores a name history. Only the given name changes are inserted, the others must already be stored.
+     *
+     * @param history
+     *            the history
+     * @param newChanges
+     *            the changes that were added since the history was loaded
+     */
+    public void addOrUpdateHistory(NameHistory history, Collection<NameChange> newChanges) throws StorageException;
+
+    public NameHistory getNameHistory(UUID uuid) throws StorageException;
+
+    public Map<UUID, NameHistory> getNameHistories(Collection<UUID> uuids) throws StorageException;
+
+    /**
+     * Gets all players that used the given name, the most recent user first.
+     */
+    public Set<UUID> getKnownUsersFromHistory(String name) throws StorageException;
+
+    public void close();
+
+    public default CompletableFuture<Void> addOrUpdatePlayersAsync(Executor executor, CachedPlayer... entries) {
+        return runAsync(executor, () -> {
+            addOrUpdatePlayers(entries);
+            return null;
+        });
+    }
+
+    public default CompletableFuture<CachedPlayer> getPlayerAsync(Executor executor, UUID uuid) {
+        return runAsync(executor, () -> getPlayer(uuid));
+    }
+
+    public default CompletableFuture<CachedPlayer> getPlayerAsync(Executor executor, String name) {
+        return runAsync(executor, () -> getPlayer(name));
+    }
+
+    public default CompletableFuture<List<CachedPlayer>> getPlayersAsync(Executor executor, Collection<UUID> uuids) {
+        return runAsync(executor, () -> getPlayers(uuids));
+    }
+
+    public default CompletableFuture<Collection<CachedPlayer>> getPlayersByNameAsync(Executor executor, Collection<String> names) {
+        return runAsync(executor, () -> getPlayersByName(names));
+    }
+
+    public default CompletableFuture<Map<UUID, NameHistory>> getNameHistoriesAsync(Executor executor, Collection<UUID> uuids) {
+        return runAsync(executor, () -> getNameHistories(uuids));
+    }
+
+    public default CompletableFuture<CachedPlayerProfile> getPlayerProfileAsync(Executor executor, UUID uuid) {
+        return runAsync(executor, () -> getPlayerProfile(uuid));
+    }
+
+    /**
+     * Runs a storage operation with the executor. If it fails, the future completes with a {@link CompletionException}
+     * caused by the {@link StorageException}.
+     */
+    public static <T> CompletableFuture<T> runAsync(Executor executor, StorageCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (StorageException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+}
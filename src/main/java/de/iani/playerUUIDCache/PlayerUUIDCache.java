@@ -1,7 +1,11 @@
 package de.iani.playerUUIDCache;
 
 import com.destroystokyo.paper.profile.PlayerProfile;
+import com.destroystokyo.paper.profile.ProfileProperty;
 import de.iani.playerUUIDCache.NameHistory.NameChange;
+import de.iani.playerUUIDCache.util.cache.BoundedCache;
+import de.iani.playerUUIDCache.util.cache.CachePolicy;
+import de.iani.playerUUIDCache.util.cache.SingleFlight;
 import de.iani.playerUUIDCache.util.fetcher.NameFetcher;
 import de.iani.playerUUIDCache.util.fetcher.ProfileFetcher;
 import de.iani.playerUUIDCache.util.fetcher.UUIDFetcher;
@@ -17,8 +21,10 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
@@ -44,17 +50,30 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
 
     protected PluginConfig config;
 
-    protected HashMap<String, CachedPlayer> playersByName;
+    protected PlayerIndex playerIndex;
 
-    protected HashMap<UUID, CachedPlayer> playersByUUID;
+    protected BoundedCache<UUID, CachedPlayerProfile> playerProfiles;
 
-    protected HashMap<UUID, CachedPlayerProfile> playerProfiles;
+    protected BoundedCache<UUID, NameHistory> nameHistories;
 
-    protected HashMap<UUID, NameHistory> nameHistories;
+    protected NegativeLookupCache absentInDatabase;
 
-    protected UUIDDatabase database;
+    protected NegativeLookupCache absentAtMojang;
 
-    private BinaryStorage binaryStorage;
+    protected volatile PlayerStorage storage;
+
+    private volatile PlayerWriteQueue writeQueue;
+
+    /**
+     * Running loads by UUID or lowercase name
+     */
+    private final SingleFlight<Object, CachedPlayer> databasePlayerLoads = new SingleFlight<>();
+
+    private final SingleFlight<Object, CachedPlayer> mojangPlayerLoads = new SingleFlight<>();
+
+    private final SingleFlight<UUID, CachedPlayerProfile> databaseProfileLoads = new SingleFlight<>();
+
+    private final SingleFlight<UUID, CachedPlayerProfile> mojangProfileLoads = new SingleFlight<>();
 
     private volatile int uuid2nameLookups;
     private volatile int name2uuidLookups;
@@ -63,6 +82,7 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
     private volatile int mojangQueries;
     private volatile int databaseUpdates;
     private volatile int databaseQueries;
+    private volatile long expiredProfiles;
 
     private volatile int profilePropertiesLookups;
     private volatile int profilePropertiesLookupQueries;
@@ -79,34 +99,40 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
             Class.forName("com.destroystokyo.paper.profile.PlayerProfile");// check if this is a Paper server with PlayerProfileAPI
             getLogger().info("Paper Profile API detected, registering listener");
             getServer().getPluginManager().registerEvents(new PaperProfileAPIListener(this), this);
-            if (config.useSQL()) {
+            PlayerStorage storage = this.storage;
+            if (storage != null && storage.supportsProfiles()) {
                 getLogger().info("Using profile properties cache");
                 try {
-                    database.createProfilePropertiesTable();
-                    playerProfiles = new HashMap<>();
+                    storage.enableProfiles();
+                    playerProfiles = new BoundedCache<>(config.getProfileCacheMaxEntries(), config.getProfileCacheMaxBytes(), PlayerUUIDCache::estimateSize, entry -> {
+                        long now = System.currentTimeMillis();
+                        return entry.getCacheLoadTime() + PROFILE_PROPERTIES_LOCAL_CACHE_EXPIRATION_TIME <= now || entry.getExpiration() <= now;
+                    });
                     getServer().getPluginManager().registerEvents(new PaperProfilePropertiesAPIListener(this), this);
                     new BukkitRunnable() {
                         @Override
                         public void run() {
-                            synchronized (PlayerUUIDCache.this) {
-                                if (playerProfiles != null) {
-                                    Iterator<CachedPlayerProfile> it = playerProfiles.values().iterator();
-                                    while (it.hasNext()) {
-                                        CachedPlayerProfile entry = it.next();
-                                        if (entry.getLastSeen() + PROFILE_PROPERTIES_CACHE_EXPIRATION_TIME <= System.currentTimeMillis()) {
-                                            it.remove();
-                                        }
-                                    }
-                                }
+                            if (playerProfiles != null) {
+                                long now = System.currentTimeMillis();
+                                playerProfiles.removeIf(entry -> entry.getLastSeen() + PROFILE_PROPERTIES_CACHE_EXPIRATION_TIME <= now);
+                            }
+                            PlayerStorage storage = PlayerUUIDCache.this.storage;
+                            if (storage == null) {
+                                return;
                             }
                             try {
-                                database.deleteOldPlayerProfiles();
-                            } catch (SQLException e) {
+                                long start = System.currentTimeMillis();
+                                int deleted = storage.deleteOldPlayerProfiles();
+                                if (deleted > 0) {
+                                    expiredProfiles += deleted;
+                                    getLogger().info("Deleted " + deleted + " old player profiles in " + (System.currentTimeMillis() - start) + " ms");
+                                }
+                            } catch (StorageException e) {
                                 getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
                             }
                         }
                     }.runTaskTimerAsynchronously(this, (long) (Math.random() * 20 * 60 * 60 * 24), 20 * 60 * 60 * 24);
-                } catch (SQLException e) {
+                } catch (StorageException e) {
                     getLogger().log(Level.SEVERE, "Could not create profiles table", e);
                 }
             }
@@ -124,13 +150,15 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
     }
 
     private synchronized void closeDatabase() {
-        if (binaryStorage != null) {
-            binaryStorage.close();
-            binaryStorage = null;
+        if (writeQueue != null) {
+            if (!writeQueue.close()) {
+                getLogger().severe("Could not write " + writeQueue.size() + " queued player updates");
+            }
+            writeQueue = null;
         }
-        if (database != null) {
-            database.disconnect();
-            database = null;
+        if (storage != null) {
+            storage.close();
+            storage = null;
         }
     }
 
@@ -140,27 +168,33 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
         super.reloadConfig();
         config = new PluginConfig(this);
         if (config.getMemoryCacheExpirationTime() != 0) {
-            playersByName = new HashMap<>();
-            playersByUUID = new HashMap<>();
-            nameHistories = new HashMap<>();
+            playerIndex = new PlayerIndex(config.getMemoryCacheExpirationTime(), config.getPlayerCacheMaxEntries(), config.getPlayerCacheMaxBytes(), !config.useSQL() && !config.useSQLite() && !config.isStorageFileIndexed());
+            long nameHistoryCacheExpirationTime = config.getNameHistoryCacheExpirationTime();
+            nameHistories = new BoundedCache<>(config.getNameHistoryCacheMaxEntries(), config.getNameHistoryCacheMaxBytes(), PlayerUUIDCache::estimateSize,
+                    entry -> nameHistoryCacheExpirationTime != -1 && entry.getCacheLoadTime() + nameHistoryCacheExpirationTime <= System.currentTimeMillis());
         } else {
-            playersByName = null;
-            playersByUUID = null;
+            playerIndex = null;
             nameHistories = null;
         }
-        if (config.useSQL()) {
-            getLogger().info("Using mysql backend");
+        absentInDatabase = new NegativeLookupCache(config.getNegativeCacheExpirationTime(), config.getNegativeCacheMaxEntries());
+        absentAtMojang = new NegativeLookupCache(config.getNegativeCacheMojangExpirationTime(), config.getNegativeCacheMaxEntries());
+        if (config.useSQL() || config.useSQLite()) {
             try {
-                database = new UUIDDatabase(config.getSqlConfig());
+                if (config.useSQL()) {
+                    getLogger().info("Using mysql backend");
+                    storage = new UUIDDatabase(config.getSqlConfig(), getLogger());
+                } else {
+                    getLogger().info("Using sqlite backend");
+                    storage = new SQLiteDatabase(SQLiteDatabase.getDatabaseFile(this), config.getSQLiteJournalMode(), config.getSQLiteSynchronous(), config.getSQLiteBusyTimeout());
+                }
 
                 if (BinaryStorage.getDatabaseFile(this).isFile()) {
                     getLogger().info("Importing players from local file");
                     try {
                         BinaryStorage tempBinaryStorage = new BinaryStorage(this);
-                        ArrayList<CachedPlayer> allPlayers = tempBinaryStorage.loadAllPlayers();
+                        tempBinaryStorage.loadAllPlayers(players -> updateEntries(true, players));
                         tempBinaryStorage.close();
-                        updateEntries(true, allPlayers.toArray(new CachedPlayer[allPlayers.size()]));
-                    } catch (IOException e) {
+                    } catch (IOException | StorageException e) {
                         getLogger().log(Level.SEVERE, "Error while trying to import from file backend", e);
                     }
                     BinaryStorage.getDatabaseFile(this).delete();
@@ -169,23 +203,62 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
             } catch (SQLException e) {
                 getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
             }
+        } else if (config.isStorageFileAppendOnly()) {
+            getLogger().info("Using append only storage file backend");
+            LogStorage logStorage = new LogStorage(this, config.getStorageFileCompactionGarbageRatio());
+            try {
+                int count = logStorage.loadAllPlayers(players -> updateEntries(false, players));
+                getLogger().info("Loaded " + count + " players");
+                // only a loaded storage is used, a broken one would fail every update
+                storage = logStorage;
+                if (count == 0 && BinaryStorage.getDatabaseFile(this).isFile()) {
+                    getLogger().info("Importing players from storage file");
+                    BinaryStorage tempBinaryStorage = new BinaryStorage(this);
+                    tempBinaryStorage.loadAllPlayers(players -> updateEntries(true, players));
+                    tempBinaryStorage.close();
+                    // kept, but not updated anymore
+                    getLogger().info("Import completed");
+                } else if (count == 0) {
+                    getLogger().info("Importing local players on first run");
+                    importLocalOfflinePlayers();
+                    getLogger().info("Import completed");
+                }
+            } catch (IOException | StorageException e) {
+                getLogger().log(Level.SEVERE, "Error while trying to access the storage file", e);
+                if (storage == null) {
+                    logStorage.close();
+                }
+            }
         } else {
             getLogger().info("Using storage file backend");
+            BinaryStorage binaryStorage = null;
             try {
-                binaryStorage = new BinaryStorage(this);
-                ArrayList<CachedPlayer> allPlayers = binaryStorage.loadAllPlayers();
-                getLogger().info("Loaded " + allPlayers.size() + " players");
-                if (!allPlayers.isEmpty()) {
-                    updateEntries(false, allPlayers.toArray(new CachedPlayer[allPlayers.size()]));
+                binaryStorage = new BinaryStorage(this, config.isStorageFileMemoryMapped(), config.getStorageFileFlushInterval(), config.isStorageFileIndexed());
+                int count;
+                if (binaryStorage.isIndexed()) {
+                    // players are loaded on demand
+                    count = binaryStorage.getEntryCount();
+                    getLogger().info("Opened the storage file index with " + count + " players");
                 } else {
+                    count = binaryStorage.loadAllPlayers(players -> updateEntries(false, players));
+                    getLogger().info("Loaded " + count + " players");
+                }
+                storage = binaryStorage;
+                if (count == 0) {
                     getLogger().info("Importing local players on first run");
                     importLocalOfflinePlayers();
                     getLogger().info("Import completed");
                 }
-            } catch (IOException e) {
+            } catch (IOException | StorageException e) {
                 getLogger().log(Level.SEVERE, "Error while trying to access the storage file", e);
+                if (storage == null && binaryStorage != null) {
+                    binaryStorage.close();
+                }
             }
         }
+        if (config.useWriteBehind()) {
+            writeQueue = new PlayerWriteQueue(this, this::writeEntries, config.getWriteBehindMaxBatchSize(), config.getWriteBehindFlushInterval());
+        }
     }
 
     @Override
@@ -201,9 +274,27 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
             sender.sendMessage("mojangQueries: " + mojangQueries);
             sender.sendMessage("databaseUpdates: " + databaseUpdates);
             sender.sendMessage("databaseQueries: " + databaseQueries);
+            PlayerWriteQueue writeQueue = this.writeQueue;
+            if (writeQueue != null) {
+                sender.sendMessage("queuedUpdates: " + writeQueue.size());
+            }
             if (hasProfileAPI) {
                 sender.sendMessage("profilePropertiesLookups: " + profilePropertiesLookups);
                 sender.sendMessage("profilePropertiesLookupQueries: " + profilePropertiesLookupQueries);
+                sender.sendMessage("expiredProfiles: " + expiredProfiles);
+            }
+            sender.sendMessage("negativeCache: " + absentInDatabase.size() + " absent in database, " + absentAtMojang.size() + " absent at Mojang");
+            PlayerIndex playerIndex = this.playerIndex;
+            if (playerIndex != null) {
+                sendCacheStats(sender, "players", playerIndex.size(), playerIndex.getPolicy());
+            }
+            BoundedCache<UUID, NameHistory> nameHistories = this.nameHistories;
+            if (nameHistories != null) {
+                sendCacheStats(sender, "nameHistories", nameHistories.size(), nameHistories.getPolicy());
+            }
+            BoundedCache<UUID, CachedPlayerProfile> playerProfiles = this.playerProfiles;
+            if (playerProfiles != null) {
+                sendCacheStats(sender, "profiles", playerProfiles.size(), playerProfiles.getPolicy());
             }
             return true;
         }
@@ -271,6 +362,30 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
         return true;
     }
 
+    private void sendCacheStats(CommandSender sender, String name, int size, CachePolicy<?, ?> policy) {
+        String message = name + "Cache: " + size + " entries, " + policy.getHits() + " hits, " + policy.getMisses() + " misses";
+        if (policy.isBounded()) {
+            message += ", " + policy.getEvictions() + " evictions, ~" + policy.getWeight() / 1024 + " KiB";
+        }
+        sender.sendMessage(message);
+    }
+
+    private static long estimateSize(NameHistory history) {
+        long size = 200 + 2L * history.getFirstName().length();
+        for (NameChange change : history.getNameChanges()) {
+            size += 80 + 2L * change.getNewName().length();
+        }
+        return size;
+    }
+
+    private static long estimateSize(CachedPlayerProfile profile) {
+        long size = 300;
+        for (ProfileProperty property : profile.getProperties()) {
+            size += 150 + property.getName().length() + property.getValue().length() + (property.getSignature() != null ? property.getSignature().length() : 0);
+        }
+        return size;
+    }
+
     private class PlayerLoginListener implements Listener {
         @EventHandler(priority = EventPriority.LOWEST)
         public void onPlayerConnectionValidateLogin(PlayerConnectionValidateLoginEvent e) {
@@ -343,57 +458,189 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
     public Collection<CachedPlayer> getPlayers(Collection<String> playerNames, boolean queryMojangIfUnknown) {
         name2uuidLookups += playerNames.size();
         ArrayList<CachedPlayer> rv = new ArrayList<>();
-        ArrayList<String> loadNames = queryMojangIfUnknown ? new ArrayList<>() : null;
+        // lowercase name -> requested name
+        LinkedHashMap<String, String> missing = new LinkedHashMap<>();
+        PlayerIndex playerIndex = this.playerIndex;
         for (String player : playerNames) {
-            CachedPlayer entry = getPlayer(player);
-            if (entry == null) {
-                if (queryMojangIfUnknown) {
-                    loadNames.add(player);
-                }
-            } else {
+            CachedPlayer entry = playerIndex != null ? playerIndex.get(player) : null;
+            if (entry != null) {
                 rv.add(entry);
+            } else {
+                missing.putIfAbsent(player.toLowerCase(), player);
             }
         }
-        if (queryMojangIfUnknown && loadNames.size() > 0) {
-            try {
-                mojangQueries++;
-                long now = System.currentTimeMillis();
-                for (Entry<String, UUID> e : new UUIDFetcher(loadNames).call().entrySet()) {
-                    final CachedPlayer entry = new CachedPlayer(e.getValue(), e.getKey(), now, now);
-                    updateEntries(true, entry);
-                    rv.add(entry);
+
+        PlayerStorage storage = this.storage;
+        if (storage != null && storage.supportsLookups() && !missing.isEmpty()) {
+            ArrayList<String> loadNames = new ArrayList<>();
+            for (String name : missing.values()) {
+                if (!absentInDatabase.isAbsent(name)) {
+                    loadNames.add(name);
+                }
+            }
+            if (!loadNames.isEmpty()) {
+                databaseQueries++;
+                long generation = absentInDatabase.getGeneration();
+                try {
+                    Collection<CachedPlayer> loaded = storage.getPlayersByName(loadNames);
+                    updateEntries(false, loaded.toArray(new CachedPlayer[loaded.size()]));
+                    for (CachedPlayer entry : loaded) {
+                        rv.add(entry);
+                        missing.remove(entry.getName().toLowerCase());
+                    }
+                    for (String name : loadNames) {
+                        if (missing.containsKey(name.toLowerCase())) {
+                            absentInDatabase.markAbsent(name, generation);
+                        }
+                    }
+                } catch (StorageException e) {
+                    getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
+                }
+            }
+        }
+
+        if (queryMojangIfUnknown && !missing.isEmpty()) {
+            ArrayList<String> loadNames = new ArrayList<>();
+            for (String name : missing.values()) {
+                if (!absentAtMojang.isAbsent(name)) {
+                    loadNames.add(name);
+                }
+            }
+            if (!loadNames.isEmpty()) {
+                try {
+                    mojangQueries++;
+                    long generation = absentAtMojang.getGeneration();
+                    long now = System.currentTimeMillis();
+                    ArrayList<CachedPlayer> loaded = new ArrayList<>();
+                    for (Entry<String, UUID> e : new UUIDFetcher(loadNames).call().entrySet()) {
+                        loaded.add(new CachedPlayer(e.getValue(), e.getKey(), now, now));
+                        missing.remove(e.getKey().toLowerCase());
+                    }
+                    updateEntries(true, loaded.toArray(new CachedPlayer[loaded.size()]));
+                    rv.addAll(loaded);
+                    for (String name : loadNames) {
+                        if (missing.containsKey(name.toLowerCase())) {
+                            absentAtMojang.markAbsent(name, generation);
+                        }
+                    }
+                } catch (Exception e) {
+                    getLogger().log(Level.SEVERE, "Error while trying to load players: " + loadNames, e);
                 }
-            } catch (Exception e) {
-                getLogger().log(Level.SEVERE, "Error while trying to load players: " + loadNames, e);
             }
         }
         return rv;
     }
 
     @Override
-    public CachedPlayer getPlayer(String playerName) {
-        name2uuidLookups++;
-        synchronized (this) {
-            if (playersByName != null) {
-                CachedPlayer entry = playersByName.get(playerName.toLowerCase());
-                if (entry != null) {
-                    if (config.getMemoryCacheExpirationTime() == -1 || entry.getCacheLoadTime() + config.getMemoryCacheExpirationTime() > System.currentTimeMillis()) {
-                        return entry;
+    public Collection<CachedPlayer> getPlayersByUUID(Collection<UUID> playerUUIDs) {
+        return getPlayersByUUID(playerUUIDs, false);
+    }
+
+    @Override
+    public Collection<CachedPlayer> getPlayersByUUID(Collection<UUID> playerUUIDs, boolean queryMojangIfUnknown) {
+        uuid2nameLookups += playerUUIDs.size();
+        ArrayList<CachedPlayer> rv = new ArrayList<>();
+        LinkedHashSet<UUID> missing = new LinkedHashSet<>();
+        PlayerIndex playerIndex = this.playerIndex;
+        for (UUID playerUUID : playerUUIDs) {
+            CachedPlayer entry = playerIndex != null ? playerIndex.get(playerUUID) : null;
+            if (entry != null) {
+                rv.add(entry);
+            } else {
+                missing.add(playerUUID);
+            }
+        }
+
+        PlayerStorage storage = this.storage;
+        if (storage != null && storage.supportsLookups() && !missing.isEmpty()) {
+            ArrayList<UUID> loadUUIDs = new ArrayList<>();
+            for (UUID playerUUID : missing) {
+                if (!absentInDatabase.isAbsent(playerUUID)) {
+                    loadUUIDs.add(playerUUID);
+                }
+            }
+            if (!loadUUIDs.isEmpty()) {
+                databaseQueries++;
+                long generation = absentInDatabase.getGeneration();
+                try {
+                    List<CachedPlayer> loaded = storage.getPlayers(loadUUIDs);
+                    updateEntries(false, loaded.toArray(new CachedPlayer[loaded.size()]));
+                    for (CachedPlayer entry : loaded) {
+                        rv.add(entry);
+                        missing.remove(entry.getUUID());
+                    }
+                    for (UUID playerUUID : loadUUIDs) {
+                        if (missing.contains(playerUUID)) {
+                            absentInDatabase.markAbsent(playerUUID, generation);
+                        }
                     }
+                } catch (StorageException e) {
+                    getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
                 }
             }
         }
-        if (database != null) {
-            try {
-                databaseQueries++;
-                CachedPlayer entry = database.getPlayer(playerName);
-                if (entry != null) {
-                    updateEntries(false, entry);
-                    return entry;
+
+        if (queryMojangIfUnknown && !missing.isEmpty()) {
+            ArrayList<UUID> loadUUIDs = new ArrayList<>();
+            for (UUID playerUUID : missing) {
+                if (!absentAtMojang.isAbsent(playerUUID)) {
+                    loadUUIDs.add(playerUUID);
                 }
-            } catch (SQLException e) {
-                getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
             }
+            if (!loadUUIDs.isEmpty()) {
+                try {
+                    mojangQueries++;
+                    long generation = absentAtMojang.getGeneration();
+                    long now = System.currentTimeMillis();
+                    ArrayList<CachedPlayer> loaded = new ArrayList<>();
+                    for (Entry<UUID, String> e : new NameFetcher(loadUUIDs).call().entrySet()) {
+                        loaded.add(new CachedPlayer(e.getKey(), e.getValue(), now, now));
+                        missing.remove(e.getKey());
+                    }
+                    updateEntries(true, loaded.toArray(new CachedPlayer[loaded.size()]));
+                    rv.addAll(loaded);
+                    for (UUID playerUUID : loadUUIDs) {
+                        if (missing.contains(playerUUID)) {
+                            absentAtMojang.markAbsent(playerUUID, generation);
+                        }
+                    }
+                } catch (Exception e) {
+                    getLogger().log(Level.SEVERE, "Error while trying to load players: " + loadUUIDs, e);
+                }
+            }
+        }
+        return rv;
+    }
+
+    @Override
+    public CachedPlayer getPlayer(String playerName) {
+        name2uuidLookups++;
+        PlayerIndex playerIndex = this.playerIndex;
+        if (playerIndex != null) {
+            CachedPlayer entry = playerIndex.get(playerName);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        PlayerStorage storage = this.storage;
+        if (storage != null && storage.supportsLookups() && !absentInDatabase.isAbsent(playerName)) {
+            return databasePlayerLoads.load(playerName.toLowerCase(), () -> loadPlayerFromDatabase(storage, playerName));
+        }
+        return null;
+    }
+
+    private CachedPlayer loadPlayerFromDatabase(PlayerStorage storage, String playerName) {
+        long generation = absentInDatabase.getGeneration();
+        try {
+            databaseQueries++;
+            CachedPlayer entry = storage.getPlayer(playerName);
+            if (entry != null) {
+                updateEntries(false, entry);
+                return entry;
+            }
+            absentInDatabase.markAbsent(playerName, generation);
+        } catch (StorageException e) {
+            getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
         }
         return null;
     }
@@ -438,27 +685,32 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
     @Override
     public CachedPlayer getPlayer(UUID playerUUID) {
         uuid2nameLookups++;
-        synchronized (this) {
-            if (playersByUUID != null) {
-                CachedPlayer entry = playersByUUID.get(playerUUID);
-                if (entry != null) {
-                    if (config.getMemoryCacheExpirationTime() == -1 || entry.getCacheLoadTime() + config.getMemoryCacheExpirationTime() > System.currentTimeMillis()) {
-                        return entry;
-                    }
-                }
+        PlayerIndex playerIndex = this.playerIndex;
+        if (playerIndex != null) {
+            CachedPlayer entry = playerIndex.get(playerUUID);
+            if (entry != null) {
+                return entry;
             }
         }
-        if (database != null) {
-            try {
-                databaseQueries++;
-                CachedPlayer entry = database.getPlayer(playerUUID);
-                if (entry != null) {
-                    updateEntries(false, entry);
-                    return entry;
-                }
-            } catch (SQLException e) {
-                getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
+        PlayerStorage storage = this.storage;
+        if (storage != null && storage.supportsLookups() && !absentInDatabase.isAbsent(playerUUID)) {
+            return databasePlayerLoads.load(playerUUID, () -> loadPlayerFromDatabase(storage, playerUUID));
+        }
+        return null;
+    }
+
+    private CachedPlayer loadPlayerFromDatabase(PlayerStorage storage, UUID playerUUID) {
+        long generation = absentInDatabase.getGeneration();
+        try {
+            databaseQueries++;
+            CachedPlayer entry = storage.getPlayer(playerUUID);
+            if (entry != null) {
+                updateEntries(false, entry);
+                return entry;
             }
+            absentInDatabase.markAbsent(playerUUID, generation);
+        } catch (StorageException e) {
+            getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
         }
         return null;
     }
@@ -501,7 +753,15 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
     }
 
     protected CachedPlayer getPlayerFromMojang(String playerName) {
+        if (absentAtMojang.isAbsent(playerName)) {
+            return null;
+        }
+        return mojangPlayerLoads.load(playerName.toLowerCase(), () -> fetchPlayerFromMojang(playerName));
+    }
+
+    private CachedPlayer fetchPlayerFromMojang(String playerName) {
         mojangQueries++;
+        long generation = absentAtMojang.getGeneration();
         try {
             for (Entry<String, UUID> e : new UUIDFetcher(Collections.singletonList(playerName)).call().entrySet()) {
                 if (playerName.equalsIgnoreCase(e.getKey())) {
@@ -515,6 +775,7 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
                     return entry;
                 }
             }
+            absentAtMojang.markAbsent(playerName, generation);
         } catch (Exception e) {
             getLogger().log(Level.SEVERE, "Error while trying to load player: " + playerName, e);
         }
@@ -522,9 +783,18 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
     }
 
     protected CachedPlayer getPlayerFromMojang(UUID playerUUID) {
+        if (absentAtMojang.isAbsent(playerUUID)) {
+            return null;
+        }
+        return mojangPlayerLoads.load(playerUUID, () -> fetchPlayerFromMojang(playerUUID));
+    }
+
+    private CachedPlayer fetchPlayerFromMojang(UUID playerUUID) {
         mojangQueries++;
+        long generation = absentAtMojang.getGeneration();
         try {
-            for (Entry<UUID, String> e : new NameFetcher(Collections.singletonList(playerUUID)).call().entrySet()) {
+            Map<UUID, String> result = new NameFetcher(Collections.singletonList(playerUUID)).call();
+            for (Entry<UUID, String> e : result.entrySet()) {
                 if (playerUUID.equals(e.getKey())) {
                     long now = System.currentTimeMillis();
                     final CachedPlayer entry = new CachedPlayer(e.getKey(), e.getValue(), now, now);
@@ -536,6 +806,7 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
                     return entry;
                 }
             }
+            absentAtMojang.markAbsent(playerUUID, generation);
         } catch (Exception e) {
             getLogger().log(Level.SEVERE, "Error while trying to load player name: " + playerUUID, e);
         }
@@ -544,27 +815,25 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
 
     @Override
     public List<CachedPlayer> searchPlayersByPartialName(String partialName) {
+        return searchPlayersByPartialName(partialName, 0);
+    }
+
+    @Override
+    public List<CachedPlayer> searchPlayersByPartialName(String partialName, int limit) {
         List<CachedPlayer> result = null;
-        if (database != null) {
+        PlayerStorage storage = this.storage;
+        if (storage != null && storage.supportsLookups()) {
             databaseQueries++;
             try {
-                result = database.searchPlayers(partialName);
+                result = storage.searchPlayers(partialName, limit, 0);
                 updateEntries(false, result.toArray(new CachedPlayer[result.size()]));
-            } catch (SQLException e) {
+            } catch (StorageException e) {
                 getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
             }
         }
-        if (result == null && playersByUUID != null) {
-            partialName = partialName.toLowerCase();
-            result = new ArrayList<>();
-            synchronized (this) {
-                for (CachedPlayer player : playersByUUID.values()) {
-                    if (player.getName().toLowerCase().contains(partialName)) {
-                        result.add(player);
-                    }
-                }
-                result.sort((p1, p2) -> -1 * Long.compare(p1.getLastSeen(), p2.getLastSeen()));
-            }
+        PlayerIndex playerIndex = this.playerIndex;
+        if (result == null && playerIndex != null) {
+            result = playerIndex.searchByPartialName(partialName, limit);
         }
 
         return result;
@@ -572,79 +841,76 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
 
     @Override
     public void loadAllPlayersFromDatabase() {
-        if (this.database == null) {
+        PlayerStorage storage = this.storage;
+        if (storage == null || !storage.supportsLookups()) {
+            // all players are loaded at the start
             return;
         }
 
         try {
-            Set<CachedPlayer> players = this.database.getAllPlayers();
-            updateEntries(false, players.toArray(new CachedPlayer[players.size()]));
+            long start = System.currentTimeMillis();
+            int count = storage.loadAllPlayers(players -> updateEntries(false, players));
+            getLogger().info("Loaded " + count + " players from the database in " + (System.currentTimeMillis() - start) + " ms");
         } catch (Exception e) {
             getLogger().log(Level.SEVERE, "Error while trying to load players", e);
         }
     }
 
-    public synchronized void updateEntries(boolean updateDB, CachedPlayer... entries) {
+    public void updateEntries(boolean updateDB, CachedPlayer... entries) {
         if (entries == null || entries.length == 0) {
             return;
         }
-        if (playersByUUID != null && playersByName != null) {
-            for (CachedPlayer entry : entries) {
-                CachedPlayer oldEntry = playersByUUID.get(entry.getUUID());
-                if (oldEntry != null) {
-                    String oldName = oldEntry.getName();
-                    if (!oldName.equalsIgnoreCase(entry.getName())) {
-                        CachedPlayer oldNameEntry = playersByName.get(oldName.toLowerCase());
-                        if (oldNameEntry != null && oldNameEntry.getUUID().equals(entry.getUUID())) {
-                            playersByName.remove(oldName.toLowerCase());
-                        }
-                    }
-                }
-                if (oldEntry == null || oldEntry.getLastSeen() <= entry.getLastSeen()) {
-                    playersByUUID.put(entry.getUUID(), entry);
-                }
-                String newLowerName = entry.getName().toLowerCase();
-                oldEntry = playersByName.get(newLowerName);
-                if (oldEntry == null || oldEntry.getLastSeen() <= entry.getLastSeen()) {
-                    playersByName.put(newLowerName, entry);
-                }
+        PlayerIndex playerIndex = this.playerIndex;
+        if (playerIndex != null) {
+            if (entries.length == 1) {
+                playerIndex.update(entries[0]);
+            } else {
+                playerIndex.updateAll(entries);
             }
         }
+        for (CachedPlayer entry : entries) {
+            absentInDatabase.invalidate(entry);
+            absentAtMojang.invalidate(entry);
+        }
         if (updateDB) {
-            if (database != null) {
-                try {
-                    databaseUpdates++;
-                    database.addOrUpdatePlayers(entries);
-                } catch (SQLException e) {
-                    getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
+            PlayerWriteQueue writeQueue = this.writeQueue;
+            if (writeQueue != null) {
+                for (CachedPlayer entry : entries) {
+                    writeQueue.add(entry);
                 }
+            } else {
+                writeEntries(entries);
             }
-            if (binaryStorage != null) {
-                try {
-                    databaseUpdates++;
-                    for (CachedPlayer player : entries) {
-                        binaryStorage.addOrUpdatePlayer(player);
-                    }
-                } catch (IOException e) {
-                    getLogger().log(Level.SEVERE, "Error while trying to access the storage file", e);
-                }
+        }
+    }
+
+    private boolean writeEntries(CachedPlayer[] entries) {
+        boolean success = true;
+        PlayerStorage storage = this.storage;
+        if (storage != null) {
+            try {
+                databaseUpdates++;
+                storage.addOrUpdatePlayers(entries);
+            } catch (StorageException e) {
+                getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
+                success = false;
             }
         }
+        return success;
     }
 
-    protected synchronized void updateProfileProperties(boolean updateDB, CachedPlayerProfile entry) {
+    protected void updateProfileProperties(boolean updateDB, CachedPlayerProfile entry) {
+        BoundedCache<UUID, CachedPlayerProfile> playerProfiles = this.playerProfiles;
         if (playerProfiles != null) {
-            CachedPlayerProfile oldEntry = playerProfiles.get(entry.getUUID());
-            if (oldEntry == null || oldEntry.getLastSeen() <= entry.getLastSeen()) {
-                playerProfiles.put(entry.getUUID(), entry);
-            }
+            playerProfiles.putIf(entry.getUUID(), entry, (oldEntry, newEntry) -> oldEntry.getLastSeen() <= newEntry.getLastSeen());
         }
         if (updateDB) {
-            if (database != null) {
+            PlayerStorage storage = this.storage;
+            if (storage != null) {
                 try {
                     databaseUpdates++;
-                    database.addOrUpdatePlayerProfile(entry);
-                } catch (SQLException e) {
+                    storage.addOrUpdatePlayerProfile(entry);
+                } catch (StorageException e) {
                     getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
                 }
             }
@@ -653,30 +919,30 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
 
     public CachedPlayerProfile getPlayerProfile(UUID playerUUID) {
         profilePropertiesLookups++;
-        synchronized (this) {
-            if (playerProfiles != null) {
-                CachedPlayerProfile entry = playerProfiles.get(playerUUID);
-                if (entry != null) {
-                    long now = System.currentTimeMillis();
-                    if (entry.getCacheLoadTime() + PROFILE_PROPERTIES_LOCAL_CACHE_EXPIRATION_TIME > now && entry.getExpiration() > now) {
-                        return entry;
-                    } else {
-                        playerProfiles.remove(playerUUID);
-                    }
-                }
+        BoundedCache<UUID, CachedPlayerProfile> playerProfiles = this.playerProfiles;
+        if (playerProfiles != null) {
+            CachedPlayerProfile entry = playerProfiles.get(playerUUID);
+            if (entry != null) {
+                return entry;
             }
         }
-        if (database != null) {
-            try {
-                profilePropertiesLookupQueries++;
-                CachedPlayerProfile entry = database.getPlayerProfile(playerUUID);
-                if (entry != null && entry.getExpiration() > System.currentTimeMillis()) {
-                    updateProfileProperties(false, entry);
-                    return entry;
-                }
-            } catch (SQLException e) {
-                getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
+        PlayerStorage storage = this.storage;
+        if (storage != null && storage.supportsProfiles()) {
+            return databaseProfileLoads.load(playerUUID, () -> loadPlayerProfileFromDatabase(storage, playerUUID));
+        }
+        return null;
+    }
+
+    private CachedPlayerProfile loadPlayerProfileFromDatabase(PlayerStorage storage, UUID playerUUID) {
+        try {
+            profilePropertiesLookupQueries++;
+            CachedPlayerProfile entry = storage.getPlayerProfile(playerUUID);
+            if (entry != null && entry.getExpiration() > System.currentTimeMillis()) {
+                updateProfileProperties(false, entry);
+                return entry;
             }
+        } catch (StorageException e) {
+            getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
         }
         return null;
     }
@@ -716,6 +982,10 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
     }
 
     protected CachedPlayerProfile getPlayerProfileFromMojang(UUID playerUUID) {
+        return mojangProfileLoads.load(playerUUID, () -> fetchPlayerProfileFromMojang(playerUUID));
+    }
+
+    private CachedPlayerProfile fetchPlayerProfileFromMojang(UUID playerUUID) {
         mojangQueries++;
         try {
             CachedPlayerProfile entry = new ProfileFetcher(playerUUID).call();
@@ -757,9 +1027,10 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
                 history = getNameHistoryInternal(id, true); // force reload from database to avoid outdated cache
                 if (!currentName.equals(history.getName(time))) {
                     ArrayList<NameChange> nameChanges = new ArrayList<>(history.getNameChanges());
-                    nameChanges.add(new NameChange(currentName, time));
+                    NameChange newChange = new NameChange(currentName, time);
+                    nameChanges.add(newChange);
                     history = new NameHistory(history.getUUID(), history.getFirstName(), nameChanges, time);
-                    updateHistory(true, history);
+                    updateHistory(true, history, List.of(newChange));
                 }
             }
         }
@@ -780,26 +1051,24 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
     private NameHistory getNameHistoryInternal(UUID playerUUID, boolean skipCache) {
         nameHistoryLookups++;
         NameHistory result;
-        if (!skipCache) {
-            synchronized (this) {
-                result = nameHistories.get(playerUUID);
-                if (result != null) {
-                    if (config.getNameHistoryCacheExpirationTime() == -1 || result.getCacheLoadTime() + config.getNameHistoryCacheExpirationTime() > System.currentTimeMillis()) {
-                        return result;
-                    }
-                }
+        BoundedCache<UUID, NameHistory> nameHistories = this.nameHistories;
+        if (!skipCache && nameHistories != null) {
+            result = nameHistories.get(playerUUID);
+            if (result != null) {
+                return result;
             }
         }
 
-        if (database != null) {
+        PlayerStorage storage = this.storage;
+        if (storage != null && storage.supportsNameHistories()) {
             databaseQueries++;
             try {
-                result = database.getNameHistory(playerUUID);
+                result = storage.getNameHistory(playerUUID);
                 if (result != null) {
                     updateHistory(false, result);
                     return result;
                 }
-            } catch (SQLException e) {
+            } catch (StorageException e) {
                 getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
             }
         }
@@ -807,6 +1076,37 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
         return null;
     }
 
+    @Override
+    public Map<UUID, NameHistory> getNameHistories(Collection<UUID> playerUUIDs) {
+        Map<UUID, NameHistory> result = new HashMap<>();
+        Set<UUID> missing = new LinkedHashSet<>();
+        BoundedCache<UUID, NameHistory> nameHistories = this.nameHistories;
+        for (UUID playerUUID : playerUUIDs) {
+            nameHistoryLookups++;
+            NameHistory history = nameHistories != null ? nameHistories.get(playerUUID) : null;
+            if (history != null) {
+                result.put(playerUUID, history);
+            } else {
+                missing.add(playerUUID);
+            }
+        }
+
+        PlayerStorage storage = this.storage;
+        if (storage != null && storage.supportsNameHistories() && !missing.isEmpty()) {
+            databaseQueries++;
+            try {
+                Map<UUID, NameHistory> loaded = storage.getNameHistories(missing);
+                for (NameHistory history : loaded.values()) {
+                    updateHistory(false, history);
+                }
+                result.putAll(loaded);
+            } catch (StorageException e) {
+                getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
+            }
+        }
+        return result;
+    }
+
     @Deprecated
     @Override
     public void getNameHistoryAsynchronously(UUID playerUUID, Callback<NameHistory> synchronousCallback) {
@@ -832,26 +1132,30 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
     @Override
     public Set<UUID> getCurrentAndPreviousPlayers(String name) {
         Set<UUID> result = null;
-        if (database != null) {
+        PlayerStorage storage = this.storage;
+        if (storage != null && storage.supportsNameHistories()) {
             try {
                 databaseQueries++;
-                result = database.getKnownUsersFromHistory(name);
-            } catch (SQLException e) {
+                result = storage.getKnownUsersFromHistory(name);
+            } catch (StorageException e) {
                 getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
             }
         }
 
+        BoundedCache<UUID, NameHistory> nameHistories = this.nameHistories;
         if (result == null) {
             result = new HashSet<>();
-            for (NameHistory history : nameHistories.values()) {
-                if (history.getFirstName().equals(name)) {
-                    result.add(history.getUUID());
-                    continue;
-                }
-                for (NameChange change : history.getNameChanges()) {
-                    if (change.getNewName().equals(name)) {
+            if (nameHistories != null) {
+                for (NameHistory history : nameHistories.values()) {
+                    if (history.getFirstName().equals(name)) {
                         result.add(history.getUUID());
-                        break;
+                        continue;
+                    }
+                    for (NameChange change : history.getNameChanges()) {
+                        if (change.getNewName().equals(name)) {
+                            result.add(history.getUUID());
+                            break;
+                        }
                     }
                 }
             }
@@ -865,16 +1169,28 @@ public class PlayerUUIDCache extends JavaPlugin implements PlayerUUIDCacheAPI {
         return result;
     }
 
-    protected synchronized void updateHistory(boolean updateDB, NameHistory history) {
+    protected void updateHistory(boolean updateDB, NameHistory history) {
+        updateHistory(updateDB, history, history.getNameChanges());
+    }
+
+    /**
+     * Updates a name history in the cache and optionally in the database.
+     *
+     * @param newChanges
+     *            the name changes that are not yet stored in the database
+     */
+    protected void updateHistory(boolean updateDB, NameHistory history, Collection<NameChange> newChanges) {
+        BoundedCache<UUID, NameHistory> nameHistories = this.nameHistories;
         if (nameHistories != null) {
             nameHistories.put(history.getUUID(), history);
         }
         if (updateDB) {
-            if (database != null) {
+            PlayerStorage storage = this.storage;
+            if (storage != null && storage.supportsNameHistories()) {
                 try {
                     databaseUpdates++;
-                    database.addOrUpdateHistory(history);
-                } catch (SQLException e) {
+                    storage.addOrUpdateHistory(history, newChanges);
+                } catch (StorageException e) {
                     getLogger().log(Level.SEVERE, "Error while trying to access the database", e);
                 }
             }
@@ -3,6 +3,7 @@ package de.iani.playerUUIDCache;
 import com.destroystokyo.paper.profile.PlayerProfile;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Future;
@@ -90,6 +91,34 @@ public interface PlayerUUIDCacheAPI {
      */
     Collection<CachedPlayer> getPlayers(Collection<String> playerNames, boolean queryMojangIfUnknown);
 
+    /**
+     * Gets multiple CachedPlayers by their UUID.
+     * Players that are not in the cache are loaded from the database with a few bulk queries. This will never query
+     * Mojang. The result will only contain the players found.
+     * This method can be called from any thread.
+     *
+     * @param playerUUIDs
+     *            a Collection of UUIDs
+     * @return a Collection of CachedPlayers
+     */
+    Collection<CachedPlayer> getPlayersByUUID(Collection<UUID> playerUUIDs);
+
+    /**
+     * Gets multiple CachedPlayers by their UUID.
+     * Players that are not in the cache are loaded from the database with a few bulk queries. This method will query
+     * Mojang if queryMojangIfUnknown is true and some players are still not found.
+     * This query is blocking, so avoid calling it in the main thread if possible.
+     * The result will only contain the players found.
+     * This method can be called from any thread.
+     *
+     * @param playerUUIDs
+     *            a Collection of UUIDs
+     * @param queryMojangIfUnknown
+     *            query Mojang if this parameter is true and not all players are found in the cache or database
+     * @return a Collection of CachedPlayers
+     */
+    Collection<CachedPlayer> getPlayersByUUID(Collection<UUID> playerUUIDs, boolean queryMojangIfUnknown);
+
     /**
      * Gets a CachedPlayer for a UUID.
      * The result may be null if this player is not found in the cache.
@@ -176,7 +205,8 @@ public interface PlayerUUIDCacheAPI {
      * Searches for all known players whose names contain the given string. If a database is present, it will be used.
      * If no database is present, or if the database query fails, the local cache will be used. If no local cache is
      * present, null will be returned. This will never query Mojang. The resulting list is ordered by when the players
-     * were last seen on the server, with players seen more recently coming first.
+     * were last seen on the server, with players seen more recently coming first. If the database is configured to
+     * search by prefix, only names starting with the given string are found.
      *
      * @param partialName
      *            a part of a name to search for
@@ -184,6 +214,19 @@ public interface PlayerUUIDCacheAPI {
      */
     List<CachedPlayer> searchPlayersByPartialName(String partialName);
 
+    /**
+     * Searches for the known players whose names contain the given string, like
+     * {@link #searchPlayersByPartialName(String)}, but returns at most the given number of players. These are the
+     * players seen most recently.
+     *
+     * @param partialName
+     *            a part of a name to search for
+     * @param limit
+     *            the maximum number of players to return, or 0 for no limit
+     * @return a List of CachedPlayers whose names contain that part
+     */
+    List<CachedPlayer> searchPlayersByPartialName(String partialName, int limit);
+
     /**
      * Loads all players from the database into the local cache. If not database is present, this method has no effect.
      */
@@ -199,6 +242,16 @@ public interface PlayerUUIDCacheAPI {
      */
     NameHistory getNameHistory(UUID playerUUID);
 
+    /**
+     * Gets the NameHistories for many UUIDs at once. Histories that are not cached are loaded from the database with
+     * a few bulk queries instead of one query per player.
+     *
+     * @param playerUUIDs
+     *            the UUIDs of the players
+     * @return a Map from the UUIDs to their histories, UUIDs without a known history are not contained
+     */
+    Map<UUID, NameHistory> getNameHistories(Collection<UUID> playerUUIDs);
+
     /**
      * Gets a NameHistory for a player.
      * The result may be null if this player's history is not found in the cache.
@@ -0,0 +1,97 @@
+package de.iani.playerUUIDCache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Collects player updates in memory and writes them to the storage in batches.
+ * Only the update with the newest lastSeen is kept for each UUID.
+ */
+public class PlayerWriteQueue {
+    private final PlayerUUIDCache plugin;
+
+    private final Predicate<CachedPlayer[]> writer;
+
+    private final int maxBatchSize;
+
+    private final ConcurrentHashMap<UUID, CachedPlayer> pending;
+
+    private final Object flushLock;
+
+    private final AtomicBoolean flushScheduled;
+
+    private volatile BukkitTask flushTask;
+
+    public PlayerWriteQueue(PlayerUUIDCache plugin, Predicate<CachedPlayer[]> writer, int maxBatchSize, long flushInterval) {
+        this.plugin = plugin;
+        this.writer = writer;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.pending = new ConcurrentHashMap<>();
+        this.flushLock = new Object();
+        this.flushScheduled = new AtomicBoolean();
+        long intervalTicks = Math.max(1, flushInterval / 50);
+        flushTask = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, this::flush, intervalTicks, intervalTicks);
+    }
+
+    public void add(CachedPlayer entry) {
+        pending.merge(entry.getUUID(), entry, (oldEntry, newEntry) -> oldEntry.getLastSeen() <= newEntry.getLastSeen() ? newEntry : oldEntry);
+        if (pending.size() >= maxBatchSize && flushTask != null && flushScheduled.compareAndSet(false, true)) {
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Writes all pending updates. If a batch cannot be written, it is queued again and the flush is aborted.
+     *
+     * @return true if all pending updates were written
+     */
+    public boolean flush() {
+        synchronized (flushLock) {
+            while (!pending.isEmpty()) {
+                ArrayList<CachedPlayer> batch = new ArrayList<>();
+                Iterator<UUID> it = pending.keySet().iterator();
+                while (it.hasNext() && batch.size() < maxBatchSize) {
+                    CachedPlayer entry = pending.remove(it.next());
+                    if (entry != null) {
+                        batch.add(entry);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                if (!writer.test(batch.toArray(new CachedPlayer[batch.size()]))) {
+                    for (CachedPlayer entry : batch) {
+                        pending.merge(entry.getUUID(), entry, (newerEntry, oldEntry) -> oldEntry.getLastSeen() <= newerEntry.getLastSeen() ? newerEntry : oldEntry);
+                    }
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the background flushing and writes all pending updates in the current thread.
+     *
+     * @return true if all pending updates were written
+     */
+    public boolean close() {
+        if (flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+        return flush();
+    }
+}
@@ -1,41 +1,208 @@
-package de.iani.playerUUIDCache;
-
-import org.bukkit.configuration.file.FileConfiguration;
-
-public class PluginConfig {
-    private final long memoryCacheExpirationTime;
-
-    private final long nameHistoryCacheExpirationTime;
-
-    private final boolean useSQL;
-
-    private final SQLConfig sqlConfig;
-
-    public PluginConfig(PlayerUUIDCache plugin) {
-        FileConfiguration config = plugin.getConfig();
-        if (config.get("nameHistoryCacheExpirationTime", null) == null) {
-            config.set("nameHistoryCacheExpirationTime", 1000L * 60 * 60 * 24 * 30);
-            plugin.saveConfig();
-        }
-        useSQL = config.getBoolean("useSQL");
-        memoryCacheExpirationTime = !useSQL ? -1 : config.getLong("memoryCacheExpirationTime");
-        nameHistoryCacheExpirationTime = config.getLong("nameHistoryCacheExpirationTime", 1000L * 60 * 60 * 24 * 30); // 30 days
-        sqlConfig = useSQL ? new SQLConfig(config.getConfigurationSection("database")) : null;
-    }
-
-    public long getMemoryCacheExpirationTime() {
-        return memoryCacheExpirationTime;
-    }
-
-    public long getNameHistoryCacheExpirationTime() {
-        return nameHistoryCacheExpirationTime;
-    }
-
-    public boolean useSQL() {
-        return useSQL;
-    }
-
-    public SQLConfig getSqlConfig() {
-        return sqlConfig;
-    }
-}
+package de.iani.playerUUIDCache;
+
+import java.util.Set;
+import org.bukkit.configuration.file.FileConfiguration;
+
+public class PluginConfig {
+    private static final Set<String> SQLITE_JOURNAL_MODES = Set.of("DELETE", "TRUNCATE", "PERSIST", "MEMORY", "WAL", "OFF");
+
+    private static final Set<String> SQLITE_SYNCHRONOUS_MODES = Set.of("OFF", "NORMAL", "FULL", "EXTRA");
+
+    private final long memoryCacheExpirationTime;
+
+    private final long nameHistoryCacheExpirationTime;
+
+    private final boolean useSQL;
+
+    private final boolean useSQLite;
+
+    private final String sqliteJournalMode;
+
+    private final String sqliteSynchronous;
+
+    private final long sqliteBusyTimeout;
+
+    private final boolean storageFileMemoryMapped;
+
+    private final long storageFileFlushInterval;
+
+    private final boolean storageFileAppendOnly;
+
+    private final boolean storageFileIndexed;
+
+    private final double storageFileCompactionGarbageRatio;
+
+    private final boolean useWriteBehind;
+
+    private final int writeBehindMaxBatchSize;
+
+    private final long writeBehindFlushInterval;
+
+    private final long playerCacheMaxEntries;
+
+    private final long playerCacheMaxBytes;
+
+    private final long nameHistoryCacheMaxEntries;
+
+    private final long nameHistoryCacheMaxBytes;
+
+    private final long profileCacheMaxEntries;
+
+    private final long profileCacheMaxBytes;
+
+    private final long negativeCacheExpirationTime;
+
+    private final long negativeCacheMojangExpirationTime;
+
+    private final long negativeCacheMaxEntries;
+
+    private final SQLConfig sqlConfig;
+
+    public PluginConfig(PlayerUUIDCache plugin) {
+        FileConfiguration config = plugin.getConfig();
+        if (config.get("nameHistoryCacheExpirationTime", null) == null) {
+            config.set("nameHistoryCacheExpirationTime", 1000L * 60 * 60 * 24 * 30);
+            plugin.saveConfig();
+        }
+        useSQL = config.getBoolean("useSQL");
+        useSQLite = !useSQL && config.getBoolean("useSQLite", false);
+        storageFileAppendOnly = !useSQL && !useSQLite && config.getBoolean("storageFile.appendOnly", false);
+        storageFileIndexed = !useSQL && !useSQLite && !storageFileAppendOnly && config.getBoolean("storageFile.indexed", false);
+        boolean useDatabase = useSQL || useSQLite || storageFileIndexed;
+        memoryCacheExpirationTime = !useDatabase ? -1 : config.getLong("memoryCacheExpirationTime");
+        nameHistoryCacheExpirationTime = config.getLong("nameHistoryCacheExpirationTime", 1000L * 60 * 60 * 24 * 30); // 30 days
+        sqlConfig = useSQL ? new SQLConfig(config.getConfigurationSection("database")) : null;
+        sqliteJournalMode = getOption(plugin, "sqlite.journalMode", "WAL", SQLITE_JOURNAL_MODES);
+        sqliteSynchronous = getOption(plugin, "sqlite.synchronous", "NORMAL", SQLITE_SYNCHRONOUS_MODES);
+        sqliteBusyTimeout = config.getLong("sqlite.busyTimeout", 10000);
+        storageFileMemoryMapped = config.getBoolean("storageFile.memoryMapped", false);
+        storageFileFlushInterval = config.getLong("storageFile.flushInterval", 1000);
+        storageFileCompactionGarbageRatio = config.getDouble("storageFile.compactionGarbageRatio", 0.5);
+        useWriteBehind = config.getBoolean("writeBehind.enabled", false);
+        writeBehindMaxBatchSize = config.getInt("writeBehind.maxBatchSize", 500);
+        writeBehindFlushInterval = config.getLong("writeBehind.flushInterval", 2000);
+        // without a database or an index file the memory cache is the only index of the storage file, so it must not be limited
+        playerCacheMaxEntries = !useDatabase ? 0 : config.getLong("memoryCacheLimits.players.maxEntries", 0);
+        playerCacheMaxBytes = !useDatabase ? 0 : config.getLong("memoryCacheLimits.players.maxBytes", 0);
+        nameHistoryCacheMaxEntries = config.getLong("memoryCacheLimits.nameHistories.maxEntries", 0);
+        nameHistoryCacheMaxBytes = config.getLong("memoryCacheLimits.nameHistories.maxBytes", 0);
+        profileCacheMaxEntries = config.getLong("memoryCacheLimits.profiles.maxEntries", 0);
+        profileCacheMaxBytes = config.getLong("memoryCacheLimits.profiles.maxBytes", 0);
+        negativeCacheExpirationTime = config.getLong("negativeCache.expirationTime", 1000L * 60);
+        negativeCacheMojangExpirationTime = config.getLong("negativeCache.mojangExpirationTime", 1000L * 60 * 30);
+        negativeCacheMaxEntries = config.getLong("negativeCache.maxEntries", 10000);
+    }
+
+    public long getMemoryCacheExpirationTime() {
+        return memoryCacheExpirationTime;
+    }
+
+    public long getNameHistoryCacheExpirationTime() {
+        return nameHistoryCacheExpirationTime;
+    }
+
+    public boolean useSQL() {
+        return useSQL;
+    }
+
+    public boolean useSQLite() {
+        return useSQLite;
+    }
+
+    public SQLConfig getSqlConfig() {
+        return sqlConfig;
+    }
+
+    public String getSQLiteJournalMode() {
+        return sqliteJournalMode;
+    }
+
+    public String getSQLiteSynchronous() {
+        return sqliteSynchronous;
+    }
+
+    public long getSQLiteBusyTimeout() {
+        return sqliteBusyTimeout;
+    }
+
+    public boolean isStorageFileMemoryMapped() {
+        return storageFileMemoryMapped;
+    }
+
+    public long getStorageFileFlushInterval() {
+        return storageFileFlushInterval;
+    }
+
+    public boolean isStorageFileAppendOnly() {
+        return storageFileAppendOnly;
+    }
+
+    public boolean isStorageFileIndexed() {
+        return storageFileIndexed;
+    }
+
+    public double getStorageFileCompactionGarbageRatio() {
+        return storageFileCompactionGarbageRatio;
+    }
+
+    public boolean useWriteBehind() {
+        return useWriteBehind;
+    }
+
+    public int getWriteBehindMaxBatchSize() {
+        return writeBehindMaxBatchSize;
+    }
+
+    public long getWriteBehindFlushInterval() {
+        return writeBehindFlushInterval;
+    }
+
+    public long getPlayerCacheMaxEntries() {
+        return playerCacheMaxEntries;
+    }
+
+    public long getPlayerCacheMaxBytes() {
+        return playerCacheMaxBytes;
+    }
+
+    public long getNameHistoryCacheMaxEntries() {
+        return nameHistoryCacheMaxEntries;
+    }
+
+    public long getNameHistoryCacheMaxBytes() {
+        return nameHistoryCacheMaxBytes;
+    }
+
+    public long getProfileCacheMaxEntries() {
+        return profileCacheMaxEntries;
+    }
+
+    public long getProfileCacheMaxBytes() {
+        return profileCacheMaxBytes;
+    }
+
+    public long getNegativeCacheExpirationTime() {
+        return negativeCacheExpirationTime;
+    }
+
+    public long getNegativeCacheMojangExpirationTime() {
+        return negativeCacheMojangExpirationTime;
+    }
+
+    public long getNegativeCacheMaxEntries() {
+        return negativeCacheMaxEntries;
+    }
+
+    /**
+     * Gets an option that must be one of the allowed values, ignoring the case. Invalid values are replaced with the
+     * default.
+     */
+    private static String getOption(PlayerUUIDCache plugin, String path, String defaultValue, Set<String> allowedValues) {
+        String value = plugin.getConfig().getString(path, defaultValue).toUpperCase();
+        if (!allowedValues.contains(value)) {
+            plugin.getLogger().warning("Invalid value for " + path + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,111 @@
+package de.iani.playerUUIDCache;
+
+import com.destroystokyo.paper.profile.ProfileProperty;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Converts profile properties to and from the text stored in the profiles table. Properties are stored as a format tag
+ * followed by the name, value and signature of each property, each as length:chars. A missing signature is stored as
+ * an empty length. Rows without the tag are read as the YAML format used by older versions.
+ */
+final class ProfilePropertiesCodec {
+    private static final String FORMAT_TAG = "!pp1:";
+
+    private ProfilePropertiesCodec() {
+    }
+
+    static String encode(Collection<ProfileProperty> properties) {
+        StringBuilder sb = new StringBuilder(FORMAT_TAG);
+        for (ProfileProperty property : properties) {
+            appendString(sb, property.getName());
+            appendString(sb, property.getValue());
+            appendString(sb, property.getSignature());
+        }
+        return sb.toString();
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        if (s != null) {
+            sb.append(s.length());
+        }
+        sb.append(':');
+        if (s != null) {
+            sb.append(s);
+        }
+    }
+
+    /**
+     * Checks if the text uses the current format, so it does not need to be rewritten.
+     */
+    static boolean isCurrentFormat(String encoded) {
+        return encoded.startsWith(FORMAT_TAG);
+    }
+
+    /**
+     * Decodes properties in the current or the YAML format.
+     *
+     * @return the properties, or null if the text is invalid
+     */
+    static LinkedHashSet<ProfileProperty> decode(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        if (!isCurrentFormat(encoded)) {
+            return decodeYaml(encoded);
+        }
+        LinkedHashSet<ProfileProperty> properties = new LinkedHashSet<>();
+        int[] position = { FORMAT_TAG.length() };
+        try {
+            while (position[0] < encoded.length()) {
+                String name = readString(encoded, position);
+                String value = readString(encoded, position);
+                String signature = readString(encoded, position);
+                if (name == null || value == null) {
+                    return null;
+                }
+                properties.add(new ProfileProperty(name, value, signature));
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return null;
+        }
+        return properties;
+    }
+
+    private static String readString(String encoded, int[] position) {
+        int separator = encoded.indexOf(':', position[0]);
+        if (separator < 0) {
+            throw new IllegalArgumentException("Missing length");
+        }
+        if (separator == position[0]) {
+            position[0] = separator + 1;
+            return null;
+        }
+        int length = Integer.parseInt(encoded, position[0], separator, 10);
+        int end = separator + 1 + length;
+        String s = encoded.substring(separator + 1, end);
+        position[0] = end;
+        return s;
+    }
+
+    private static LinkedHashSet<ProfileProperty> decodeYaml(String encoded) {
+        YamlConfiguration yaml = new YamlConfiguration();
+        try {
+            yaml.loadFromString(encoded);
+        } catch (Throwable t) {
+            return null;
+        }
+        LinkedHashSet<ProfileProperty> properties = new LinkedHashSet<>();
+        for (String name : yaml.getKeys(false)) {
+            ConfigurationSection section = yaml.getConfigurationSection(name);
+            if (section != null) {
+                String value = section.getString("value");
+                String signature = section.getString("signature");
+                properties.add(new ProfileProperty(name, value, signature));
+            }
+        }
+        return properties;
+    }
+}
@@ -1,5 +1,7 @@
 package de.iani.playerUUIDCache;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.bukkit.configuration.ConfigurationSection;
 
 public class SQLConfig {
@@ -19,6 +21,30 @@ public class SQLConfig {
 
     private String namechangestablename = "namechanges";
 
+    private String nametrigramstablename = "playeruuidtrigrams";
+
+    private NameSearchMode namesearchmode = NameSearchMode.SUBSTRING;
+
+    private int batchsize = 500;
+
+    private int loadthreads = 1;
+
+    private int poolsize = 4;
+
+    private long poolmaxidletime = 300000;
+
+    private List<String> readhosts = new ArrayList<>();
+
+    private long readyourwritestime = 5000;
+
+    private boolean migratetobinaryuuids = false;
+
+    private int profileexpirychunksize = 1000;
+
+    private long profileexpirypause = 100;
+
+    private long profileexpirytimebudget = 60000;
+
     public SQLConfig(ConfigurationSection section) {
         if (section != null) {
             host = section.getString("host", host);
@@ -29,6 +55,27 @@ public class SQLConfig {
             profilestablename = section.getString("profilestablename", profilestablename);
             namehistoriestablename = section.getString("namehistoriestablename", namehistoriestablename);
             namechangestablename = section.getString("namechangestablename", namechangestablename);
+            nametrigramstablename = section.getString("nametrigramstablename", nametrigramstablename);
+            batchsize = Math.max(1, section.getInt("batchsize", batchsize));
+            loadthreads = Math.max(1, Math.min(16, section.getInt("loadthreads", loadthreads)));
+            poolsize = Math.max(1, section.getInt("poolsize", poolsize));
+            poolmaxidletime = section.getLong("poolmaxidletime", poolmaxidletime);
+            if (section.isList("readhosts")) {
+                readhosts = section.getStringList("readhosts");
+            }
+            readyourwritestime = section.getLong("readyourwritestime", readyourwritestime);
+            migratetobinaryuuids = section.getBoolean("migratetobinaryuuids", migratetobinaryuuids);
+            profileexpirychunksize = Math.max(1, section.getInt("profileexpirychunksize", profileexpirychunksize));
+            profileexpirypause = Math.max(0, section.getLong("profileexpirypause", profileexpirypause));
+            profileexpirytimebudget = Math.max(0, section.getLong("profileexpirytimebudget", profileexpirytimebudget));
+            String mode = section.getString("namesearchmode");
+            if (mode != null) {
+                try {
+                    namesearchmode = NameSearchMode.valueOf(mode.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    // keep default
+                }
+            }
         }
     }
 
@@ -63,4 +110,63 @@ public class SQLConfig {
     public String getNameChangesTableName() {
         return namechangestablename;
     }
+
+    public String getNameTrigramsTableName() {
+        return nametrigramstablename;
+    }
+
+    public NameSearchMode getNameSearchMode() {
+        return namesearchmode;
+    }
+
+    public int getBatchSize() {
+        return batchsize;
+    }
+
+    public int getLoadThreads() {
+        return loadthreads;
+    }
+
+    public int getPoolSize() {
+        return poolsize;
+    }
+
+    public long getPoolMaxIdleTime() {
+        return poolmaxidletime;
+    }
+
+    public List<String> getReadHosts() {
+        return readhosts;
+    }
+
+    public long getReadYourWritesTime() {
+        return readyourwritestime;
+    }
+
+    public boolean migrateToBinaryUUIDs() {
+        return migratetobinaryuuids;
+    }
+
+    public int getProfileExpiryChunkSize() {
+        return profileexpirychunksize;
+    }
+
+    public long getProfileExpiryPause() {
+        return profileexpirypause;
+    }
+
+    public long getProfileExpiryTimeBudget() {
+        return profileexpirytimebudget;
+    }
+
+    public enum NameSearchMode {
+        /**
+         * Names may contain the search string anywhere. Uses an additional table of name trigrams.
+         */
+        SUBSTRING,
+        /**
+         * Names must start with the search string. Uses the index on the name column.
+         */
+        PREFIX
+    }
 }
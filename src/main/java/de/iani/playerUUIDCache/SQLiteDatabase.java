@@ -0,0 +1,476 @@
+package de.iani.playerUUIDCache;
+
+import com.destroystokyo.paper.profile.ProfileProperty;
+import de.iani.playerUUIDCache.NameHistory.NameChange;
+import de.iani.playerUUIDCache.util.sql.SQLConnection;
+import de.iani.playerUUIDCache.util.sql.SQLRunnable;
+import de.iani.playerUUIDCache.util.sql.SQLUtil;
+import de.iani.playerUUIDCache.util.sql.SQLiteConnection;
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * A storage in a local SQLite file with the same features as {@link UUIDDatabase}. It needs no database server, so it
+ * can be used by standalone servers. Names are compared case insensitively and all lookups by name use indexes.
+ */
+public class SQLiteDatabase implements PlayerStorage {
+    private static final int BATCH_SIZE = 500;
+
+    private static final int POOL_SIZE = 4;
+
+    private static final long POOL_MAX_IDLE_TIME = 1000L * 60 * 5;
+
+    private static final int PROFILE_EXPIRY_CHUNK_SIZE = 1000;
+
+    private static final long PROFILE_EXPIRY_PAUSE = 100;
+
+    private static final long PROFILE_EXPIRY_TIME_BUDGET = 1000L * 60;
+
+    private final SQLConnection connection;
+
+    private volatile boolean mayUseProfilesTable;
+
+    private final String insertPlayer;
+
+    private final String selectPlayerByUUID;
+
+    private final String selectPlayersByUUIDs;
+
+    private final String selectPlayerByName;
+
+    private final String selectPlayersByNames;
+
+    private final String searchPlayersByPartialName;
+
+    private final String selectAllPlayers;
+
+    private final String insertPlayerProfile;
+
+    private final String selectPlayerProfileByUUID;
+
+    private final String deleteOldPlayerProfiles;
+
+    private final String insertNameHistory;
+
+    private final String insertNameChange;
+
+    private final String selectNameHistory;
+
+    private final String selectNameHistories;
+
+    private final String selectNameUsers;
+
+    public SQLiteDatabase(File file) throws SQLException {
+        this(file, "WAL", "NORMAL", 10000);
+    }
+
+    /**
+     * @param journalMode
+     *            the journal_mode pragma
+     * @param synchronous
+     *            the synchronous pragma
+     * @param busyTimeout
+     *            the time in ms to wait for the write lock of another connection
+     */
+    public SQLiteDatabase(File file, String journalMode, String synchronous, long busyTimeout) throws SQLException {
+        connection = new SQLiteConnection(file, POOL_SIZE, POOL_MAX_IDLE_TIME, journalMode, synchronous, busyTimeout);
+
+        String batchParameters = String.join(", ", Collections.nCopies(BATCH_SIZE, "?"));
+
+        insertPlayer = "INSERT INTO players (uuid, name, lastSeen) VALUES (?, ?, ?) ON CONFLICT (uuid) DO UPDATE SET name = excluded.name, lastSeen = excluded.lastSeen WHERE excluded.lastSeen >= players.lastSeen";
+        selectPlayerByUUID = "SELECT name, lastSeen FROM players WHERE uuid = ?";
+        selectPlayersByUUIDs = "SELECT uuid, name, lastSeen FROM players WHERE uuid IN (" + batchParameters + ")";
+        selectPlayerByName = "SELECT uuid, name, lastSeen FROM players WHERE name = ? ORDER BY lastSeen DESC LIMIT 1";
+        selectPlayersByNames = "SELECT uuid, name, lastSeen FROM players WHERE name IN (" + batchParameters + ")";
+        searchPlayersByPartialName = "SELECT uuid, name, lastSeen FROM players WHERE name LIKE ? ESCAPE '\\' ORDER BY lastSeen DESC LIMIT ? OFFSET ?";
+        selectAllPlayers = "SELECT uuid, name, lastSeen FROM players";
+
+        insertPlayerProfile = "INSERT INTO playerprofiles (uuid, profile, lastSeen) VALUES (?, ?, ?) ON CONFLICT (uuid) DO UPDATE SET profile = excluded.profile, lastSeen = excluded.lastSeen";
+        selectPlayerProfileByUUID = "SELECT profile, lastSeen FROM playerprofiles WHERE uuid = ?";
+        deleteOldPlayerProfiles = "DELETE FROM playerprofiles WHERE rowid IN (SELECT rowid FROM playerprofiles WHERE lastSeen < ? LIMIT ?)";
+
+        insertNameHistory = "INSERT INTO playernamehistories (uuid, firstName, refreshed) VALUES (?, ?, ?) ON CONFLICT (uuid) DO UPDATE SET refreshed = excluded.refreshed";
+        insertNameChange = "INSERT OR IGNORE INTO playernamechanges (uuid, date, newName) VALUES (?, ?, ?)";
+        String selectNameHistoriesWithChanges = "SELECT h.uuid, h.firstName, c.date, c.newName FROM playernamehistories h LEFT JOIN playernamechanges c ON c.uuid = h.uuid";
+        selectNameHistory = selectNameHistoriesWithChanges + " WHERE h.uuid = ?";
+        selectNameHistories = selectNameHistoriesWithChanges + " WHERE h.uuid IN (" + batchParameters + ")";
+        selectNameUsers = "SELECT uuid, date FROM (SELECT uuid, 0 AS date FROM playernamehistories WHERE firstName = ? UNION SELECT uuid, lastSeen AS date FROM players WHERE name = ? UNION SELECT uuid, date FROM playernamechanges WHERE newName = ?) ORDER BY date DESC";
+
+        try {
+            this.connection.runCommands((connection, sqlConnection) -> {
+                Statement smt = connection.createStatement();
+                smt.executeUpdate("CREATE TABLE IF NOT EXISTS players (uuid BLOB NOT NULL PRIMARY KEY, name TEXT NOT NULL COLLATE NOCASE, lastSeen INTEGER NOT NULL DEFAULT 0) WITHOUT ROWID");
+                smt.executeUpdate("CREATE INDEX IF NOT EXISTS players_name ON players (name)");
+                smt.executeUpdate("CREATE TABLE IF NOT EXISTS playerprofiles (uuid BLOB NOT NULL PRIMARY KEY, profile TEXT NOT NULL, lastSeen INTEGER NOT NULL DEFAULT 0)");
+                smt.executeUpdate("CREATE INDEX IF NOT EXISTS playerprofiles_lastSeen ON playerprofiles (lastSeen)");
+                smt.executeUpdate("CREATE TABLE IF NOT EXISTS playernamehistories (uuid BLOB NOT NULL PRIMARY KEY, firstName TEXT NOT NULL COLLATE NOCASE, refreshed INTEGER NOT NULL DEFAULT 0) WITHOUT ROWID");
+                smt.executeUpdate("CREATE INDEX IF NOT EXISTS playernamehistories_firstName ON playernamehistories (firstName)");
+                smt.executeUpdate("CREATE TABLE IF NOT EXISTS playernamechanges (uuid BLOB NOT NULL, date INTEGER NOT NULL, newName TEXT NOT NULL COLLATE NOCASE, PRIMARY KEY (uuid, date)) WITHOUT ROWID");
+                smt.executeUpdate("CREATE INDEX IF NOT EXISTS playernamechanges_newName ON playernamechanges (newName)");
+                smt.close();
+                return null;
+            });
+        } catch (SQLException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    public static File getDatabaseFile(PlayerUUIDCache plugin) {
+        return new File(plugin.getDataFolder(), "players.db");
+    }
+
+    @Override
+    public boolean supportsLookups() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsNameHistories() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsProfiles() {
+        return true;
+    }
+
+    private <T> T run(SQLRunnable<T> runnable) throws StorageException {
+        try {
+            return connection.runCommands(runnable);
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private static UUID getUUID(ResultSet rs, int index) throws SQLException {
+        return SQLUtil.bytesToUUID(rs.getBytes(index));
+    }
+
+    private static List<CachedPlayer> readPlayers(PreparedStatement smt) throws SQLException {
+        ResultSet rs = smt.executeQuery();
+        long now = System.currentTimeMillis();
+        List<CachedPlayer> result = new ArrayList<>();
+        while (rs.next()) {
+            try {
+                result.add(new CachedPlayer(getUUID(rs, 1), rs.getString(2), rs.getLong(3), now));
+            } catch (IllegalArgumentException e) {
+                // ignore invalid uuid
+            }
+        }
+        rs.close();
+        return result;
+    }
+
+    @Override
+    public int loadAllPlayers(Consumer<CachedPlayer[]> chunkConsumer) throws StorageException {
+        return run((connection, sqlConnection) -> {
+            PreparedStatement smt = sqlConnection.getOrCreateStatement(selectAllPlayers);
+            smt.setFetchSize(BATCH_SIZE);
+            ResultSet rs = smt.executeQuery();
+            long now = System.currentTimeMillis();
+            List<CachedPlayer> chunk = new ArrayList<>();
+            int count = 0;
+            while (rs.next()) {
+                try {
+                    chunk.add(new CachedPlayer(getUUID(rs, 1), rs.getString(2), rs.getLong(3), now));
+                } catch (IllegalArgumentException e) {
+                    // ignore invalid uuid
+                    continue;
+                }
+                if (chunk.size() == BATCH_SIZE) {
+                    chunkConsumer.accept(chunk.toArray(new CachedPlayer[chunk.size()]));
+                    count += chunk.size();
+                    chunk.clear();
+                }
+            }
+            rs.close();
+            if (!chunk.isEmpty()) {
+                chunkConsumer.accept(chunk.toArray(new CachedPlayer[chunk.size()]));
+                count += chunk.size();
+            }
+            return count;
+        });
+    }
+
+    @Override
+    public void addOrUpdatePlayers(CachedPlayer... entries) throws StorageException {
+        if (entries == null || entries.length == 0) {
+            return;
+        }
+        for (int start = 0; start < entries.length; start += BATCH_SIZE) {
+            final CachedPlayer[] chunk = Arrays.copyOfRange(entries, start, Math.min(entries.length, start + BATCH_SIZE));
+            run((connection, sqlConnection) -> {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement(insertPlayer);
+                for (CachedPlayer entry : chunk) {
+                    smt.setBytes(1, SQLUtil.uuidToBytes(entry.getUUID()));
+                    smt.setString(2, entry.getName());
+                    smt.setLong(3, entry.getLastSeen());
+                    smt.addBatch();
+                }
+                smt.executeBatch();
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public CachedPlayer getPlayer(UUID uuid) throws StorageException {
+        return run((connection, sqlConnection) -> {
+            PreparedStatement smt = sqlConnection.getOrCreateStatement(selectPlayerByUUID);
+            smt.setBytes(1, SQLUtil.uuidToBytes(uuid));
+            ResultSet rs = smt.executeQuery();
+            CachedPlayer result = null;
+            if (rs.next()) {
+                result = new CachedPlayer(uuid, rs.getString(1), rs.getLong(2), System.currentTimeMillis());
+            }
+            rs.close();
+            return result;
+        });
+    }
+
+    @Override
+    public CachedPlayer getPlayer(String name) throws StorageException {
+        return run((connection, sqlConnection) -> {
+            PreparedStatement smt = sqlConnection.getOrCreateStatement(selectPlayerByName);
+            smt.setString(1, name);
+            List<CachedPlayer> players = readPlayers(smt);
+            return players.isEmpty() ? null : players.get(0);
+        });
+    }
+
+    @Override
+    public List<CachedPlayer> getPlayers(Collection<UUID> uuids) throws StorageException {
+        List<CachedPlayer> result = new ArrayList<>();
+        UUID[] all = uuids.toArray(new UUID[uuids.size()]);
+        for (int start = 0; start < all.length; start += BATCH_SIZE) {
+            final UUID[] chunk = Arrays.copyOfRange(all, start, Math.min(all.length, start + BATCH_SIZE));
+            result.addAll(run((connection, sqlConnection) -> {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement(selectPlayersByUUIDs);
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    smt.setBytes(i + 1, SQLUtil.uuidToBytes(chunk[Math.min(i, chunk.length - 1)]));
+                }
+                return readPlayers(smt);
+            }));
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<CachedPlayer> getPlayersByName(Collection<String> names) throws StorageException {
+        Map<String, CachedPlayer> result = new HashMap<>();
+        String[] all = names.toArray(new String[names.size()]);
+        for (int start = 0; start < all.length; start += BATCH_SIZE) {
+            final String[] chunk = Arrays.copyOfRange(all, start, Math.min(all.length, start + BATCH_SIZE));
+            List<CachedPlayer> players = run((connection, sqlConnection) -> {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement(selectPlayersByNames);
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    smt.setString(i + 1, chunk[Math.min(i, chunk.length - 1)]);
+                }
+                return readPlayers(smt);
+            });
+            for (CachedPlayer player : players) {
+                result.merge(player.getName().toLowerCase(), player, (oldPlayer, newPlayer) -> newPlayer.getLastSeen() > oldPlayer.getLastSeen() ? newPlayer : oldPlayer);
+            }
+        }
+        return result.values();
+    }
+
+    @Override
+    public List<CachedPlayer> searchPlayers(String partialName, int limit, int offset) throws StorageException {
+        return run((connection, sqlConnection) -> {
+            PreparedStatement smt = sqlConnection.getOrCreateStatement(searchPlayersByPartialName);
+            smt.setString(1, "%" + SQLUtil.escapeLike(partialName) + "%");
+            smt.setLong(2, limit > 0 ? limit : -1);
+            smt.setInt(3, offset);
+            return readPlayers(smt);
+        });
+    }
+
+    @Override
+    public void enableProfiles() {
+        mayUseProfilesTable = true;
+    }
+
+    @Override
+    public void addOrUpdatePlayerProfile(CachedPlayerProfile entry) throws StorageException {
+        if (!mayUseProfilesTable) {
+            return;
+        }
+        run((connection, sqlConnection) -> {
+            PreparedStatement smt = sqlConnection.getOrCreateStatement(insertPlayerProfile);
+            smt.setBytes(1, SQLUtil.uuidToBytes(entry.getUUID()));
+            smt.setString(2, ProfilePropertiesCodec.encode(entry.getProperties()));
+            smt.setLong(3, entry.getLastSeen());
+            smt.executeUpdate();
+            return null;
+        });
+    }
+
+    @Override
+    public CachedPlayerProfile getPlayerProfile(UUID uuid) throws StorageException {
+        if (!mayUseProfilesTable) {
+            return null;
+        }
+        return run((connection, sqlConnection) -> {
+            PreparedStatement smt = sqlConnection.getOrCreateStatement(selectPlayerProfileByUUID);
+            smt.setBytes(1, SQLUtil.uuidToBytes(uuid));
+            ResultSet rs = smt.executeQuery();
+            CachedPlayerProfile result = null;
+            if (rs.next()) {
+                LinkedHashSet<ProfileProperty> properties = ProfilePropertiesCodec.decode(rs.getString(1));
+                if (properties != null) {
+                    result = new CachedPlayerProfile(uuid, properties, rs.getLong(2), System.currentTimeMillis());
+                }
+            }
+            rs.close();
+            return result;
+        });
+    }
+
+    /**
+     * Deletes old profiles in chunks, each in its own transaction, so other writes only wait for one chunk. The run
+     * stops when the time budget is used up, the remaining profiles are deleted by the next run.
+     */
+    @Override
+    public int deleteOldPlayerProfiles() throws StorageException {
+        long start = System.currentTimeMillis();
+        long minLastSeen = start - PlayerUUIDCache.PROFILE_PROPERTIES_CACHE_EXPIRATION_TIME * 2;
+        int deleted = 0;
+        while (true) {
+            int count = run((connection, sqlConnection) -> {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement(deleteOldPlayerProfiles);
+                smt.setLong(1, minLastSeen);
+                smt.setInt(2, PROFILE_EXPIRY_CHUNK_SIZE);
+                return smt.executeUpdate();
+            });
+            deleted += count;
+            if (count < PROFILE_EXPIRY_CHUNK_SIZE || System.currentTimeMillis() - start >= PROFILE_EXPIRY_TIME_BUDGET) {
+                return deleted;
+            }
+            try {
+                Thread.sleep(PROFILE_EXPIRY_PAUSE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return deleted;
+            }
+        }
+    }
+
+    @Override
+    public void addOrUpdateHistory(NameHistory history, Collection<NameChange> newChanges) throws StorageException {
+        run((connection, sqlConnection) -> {
+            byte[] uuid = SQLUtil.uuidToBytes(history.getUUID());
+            PreparedStatement smt = sqlConnection.getOrCreateStatement(insertNameHistory);
+            smt.setBytes(1, uuid);
+            smt.setString(2, history.getFirstName());
+            smt.setLong(3, history.getCacheLoadTime());
+            smt.executeUpdate();
+
+            if (!newChanges.isEmpty()) {
+                smt = sqlConnection.getOrCreateStatement(insertNameChange);
+                for (NameChange change : newChanges) {
+                    smt.setBytes(1, uuid);
+                    smt.setLong(2, change.getDate());
+                    smt.setString(3, change.getNewName());
+                    smt.addBatch();
+                }
+                smt.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public NameHistory getNameHistory(UUID uuid) throws StorageException {
+        return run((connection, sqlConnection) -> {
+            PreparedStatement smt = sqlConnection.getOrCreateStatement(selectNameHistory);
+            smt.setBytes(1, SQLUtil.uuidToBytes(uuid));
+            return readNameHistories(smt).get(uuid);
+        });
+    }
+
+    @Override
+    public Map<UUID, NameHistory> getNameHistories(Collection<UUID> uuids) throws StorageException {
+        Map<UUID, NameHistory> result = new HashMap<>();
+        UUID[] all = uuids.toArray(new UUID[uuids.size()]);
+        for (int start = 0; start < all.length; start += BATCH_SIZE) {
+            final UUID[] chunk = Arrays.copyOfRange(all, start, Math.min(all.length, start + BATCH_SIZE));
+            result.putAll(run((connection, sqlConnection) -> {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement(selectNameHistories);
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    smt.setBytes(i + 1, SQLUtil.uuidToBytes(chunk[Math.min(i, chunk.length - 1)]));
+                }
+                return readNameHistories(smt);
+            }));
+        }
+        return result;
+    }
+
+    private static Map<UUID, NameHistory> readNameHistories(PreparedStatement smt) throws SQLException {
+        Map<UUID, String> firstNames = new HashMap<>();
+        Map<UUID, List<NameChange>> changes = new HashMap<>();
+        ResultSet rs = smt.executeQuery();
+        while (rs.next()) {
+            try {
+                UUID uuid = getUUID(rs, 1);
+                firstNames.put(uuid, rs.getString(2));
+                List<NameChange> playerChanges = changes.computeIfAbsent(uuid, u -> new ArrayList<>());
+                String newName = rs.getString(4);
+                if (newName != null) {
+                    playerChanges.add(new NameChange(newName, rs.getLong(3)));
+                }
+            } catch (IllegalArgumentException e) {
+                // ignore invalid uuid
+            }
+        }
+        rs.close();
+
+        long now = System.currentTimeMillis();
+        Map<UUID, NameHistory> result = new HashMap<>();
+        for (Map.Entry<UUID, String> e : firstNames.entrySet()) {
+            result.put(e.getKey(), new NameHistory(e.getKey(), e.getValue(), changes.get(e.getKey()), now));
+        }
+        return result;
+    }
+
+    @Override
+    public Set<UUID> getKnownUsersFromHistory(String name) throws StorageException {
+        return run((connection, sqlConnection) -> {
+            PreparedStatement smt = sqlConnection.getOrCreateStatement(selectNameUsers);
+            smt.setString(1, name);
+            smt.setString(2, name);
+            smt.setString(3, name);
+            ResultSet rs = smt.executeQuery();
+            Set<UUID> result = new LinkedHashSet<>();
+            while (rs.next()) {
+                try {
+                    result.add(getUUID(rs, 1));
+                } catch (IllegalArgumentException e) {
+                    // ignore invalid uuid
+                }
+            }
+            rs.close();
+            return result;
+        });
+    }
+
+    @Override
+    public void close() {
+        connection.disconnect();
+    }
+}
@@ -0,0 +1,20 @@
+package de.iani.playerUUIDCache;
+
+/**
+ * Thrown if a {@link PlayerStorage} cannot read or write its data.
+ */
+public class StorageException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public StorageException(String message) {
+        super(message);
+    }
+
+    public StorageException(Throwable cause) {
+        super(cause);
+    }
+
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
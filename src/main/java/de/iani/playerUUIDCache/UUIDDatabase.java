@@ -2,25 +2,64 @@ package de.iani.playerUUIDCache;
 
 import com.destroystokyo.paper.profile.ProfileProperty;
 import de.iani.playerUUIDCache.NameHistory.NameChange;
+import de.iani.playerUUIDCache.SQLConfig.NameSearchMode;
 import de.iani.playerUUIDCache.util.sql.MySQLConnection;
 import de.iani.playerUUIDCache.util.sql.SQLConnection;
+import de.iani.playerUUIDCache.util.sql.SQLRunnable;
 import de.iani.playerUUIDCache.util.sql.SQLUtil;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.YamlConfiguration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class UUIDDatabase implements PlayerStorage {
+    private static final int MIGRATION_CHUNK_SIZE = 1000;
+
+    private static final int RECENT_WRITES_PURGE_SIZE = 10000;
+
+    /**
+     * Failed reads from read replicas are logged at most once in this time
+     */
+    private static final long READ_FAILURE_LOG_INTERVAL = 60000;
 
-public class UUIDDatabase {
     private final SQLConnection connection;
 
+    private final List<SQLConnection> readConnections;
+
+    private final AtomicInteger nextReadConnection;
+
+    private final AtomicLong lastReadFailureLog;
+
+    private final AtomicInteger unloggedReadFailures;
+
+    private final long readYourWritesTime;
+
+    /**
+     * UUIDs and lowercase names written by this server, mapped to the time until which they are read from the primary
+     */
+    private final ConcurrentHashMap<Object, Long> recentWrites;
+
     private final String tableName;
 
     private final String profilesTableName;
@@ -29,22 +68,58 @@ public class UUIDDatabase {
 
     private final String nameChangesTableName;
 
+    private final String nameTrigramsTableName;
+
+    private final NameSearchMode nameSearchMode;
+
+    private final int batchSize;
+
+    private final int loadThreads;
+
+    /**
+     * If the uuid columns use BINARY(16) instead of CHAR(36)
+     */
+    private final boolean binaryUUIDs;
+
+    private final String uuidType;
+
     private final String insertPlayer;
 
     private final String selectPlayerByUUID;
 
+    private final String selectPlayersByUUIDs;
+
+    private final String selectPlayersByNames;
+
     private final String selectPlayerByName;
 
     private final String searchPlayersByPartialName;
 
+    private final String insertNameTrigram;
+
+    private final String deleteNameTrigrams;
+
     private final String selectAllPlayers;
 
     private final String insertPlayerProfile;
 
     private final String selectPlayerProfileByUUID;
 
+    private final String rewritePlayerProfile;
+
     private final String deleteOldPlayerProfiles;
 
+    private final int profileExpiryChunkSize;
+
+    private final long profileExpiryPause;
+
+    private final long profileExpiryTimeBudget;
+
+    /**
+     * Name of the lock that makes sure only one server deletes old profiles at a time
+     */
+    private final String profileExpiryLock;
+
     private boolean mayUseProfilesTable;
 
     private final String insertNameHistory;
@@ -55,24 +130,59 @@ public class UUIDDatabase {
 
     private final String selectNameHistory;
 
-    private final String selectNameChanges;
+    private final String selectNameHistories;
 
     private final String selectNameUsers;
 
-    public UUIDDatabase(SQLConfig config) throws SQLException {
-        connection = new MySQLConnection(config.getHost(), config.getDatabase(), config.getUser(), config.getPassword());
+    private final Logger logger;
+
+    public UUIDDatabase(SQLConfig config, Logger logger) throws SQLException {
+        this.logger = logger;
+        connection = new MySQLConnection(config.getHost(), config.getDatabase(), config.getUser(), config.getPassword(), config.getPoolSize(), config.getPoolMaxIdleTime());
+        readConnections = new ArrayList<>();
+        try {
+            for (String readHost : config.getReadHosts()) {
+                readConnections.add(new MySQLConnection(readHost, config.getDatabase(), config.getUser(), config.getPassword(), config.getPoolSize(), config.getPoolMaxIdleTime()));
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+        nextReadConnection = new AtomicInteger();
+        lastReadFailureLog = new AtomicLong();
+        unloggedReadFailures = new AtomicInteger();
+        readYourWritesTime = config.getReadYourWritesTime();
+        recentWrites = new ConcurrentHashMap<>();
         tableName = config.getTableName();
         profilesTableName = config.getProfilesTableName();
         nameHistoriesTableName = config.getNameHistoriesTableName();
         nameChangesTableName = config.getNameChangesTableName();
+        nameTrigramsTableName = config.getNameTrigramsTableName();
+        nameSearchMode = config.getNameSearchMode();
+        batchSize = config.getBatchSize();
+        loadThreads = config.getLoadThreads();
+        binaryUUIDs = initUUIDType(config.migrateToBinaryUUIDs());
+        uuidType = binaryUUIDs ? "BINARY( 16 )" : "CHAR( 36 )";
 
-        insertPlayer = "INSERT INTO " + tableName + " (uuid, name, lastSeen) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE name = ?, lastSeen = ?";
+        // no parameters in the update clause, so the driver can rewrite batches to multi-row inserts
+        // concurrent updates may arrive in any order, an older entry must not replace a newer one (name is assigned first)
+        insertPlayer = "INSERT INTO " + tableName + " (uuid, name, lastSeen) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE name = IF(VALUES(lastSeen) >= lastSeen, VALUES(name), name), lastSeen = GREATEST(lastSeen, VALUES(lastSeen))";
 
         selectPlayerByUUID = "SELECT name, lastSeen FROM " + tableName + " WHERE uuid = ?";
 
+        String batchParameters = String.join(", ", Collections.nCopies(batchSize, "?"));
+
+        selectPlayersByUUIDs = "SELECT uuid, name, lastSeen FROM " + tableName + " WHERE uuid IN (" + batchParameters + ")";
+
+        selectPlayersByNames = "SELECT uuid, name, lastSeen FROM " + tableName + " WHERE name IN (" + batchParameters + ")";
+
         selectPlayerByName = "SELECT uuid, name, lastSeen FROM " + tableName + " WHERE name = ?";
 
-        searchPlayersByPartialName = "SELECT uuid, name, lastSeen FROM " + tableName + " WHERE name LIKE ? ORDER BY lastSeen DESC";
+        searchPlayersByPartialName = "SELECT uuid, name, lastSeen FROM " + tableName + " WHERE name LIKE ? ORDER BY lastSeen DESC LIMIT ? OFFSET ?";
+
+        insertNameTrigram = "INSERT IGNORE INTO " + nameTrigramsTableName + " (trigram, uuid) VALUES (?, ?)";
+
+        deleteNameTrigrams = "DELETE FROM " + nameTrigramsTableName + " WHERE uuid = ?";
 
         selectAllPlayers = "SELECT uuid, name, lastSeen FROM " + tableName;
 
@@ -80,7 +190,7 @@ public class UUIDDatabase {
             if (!sqlConnection.hasTable(tableName)) {
                 Statement smt = connection.createStatement();
                 smt.executeUpdate("CREATE TABLE `" + tableName + "` ("//
-                        + "`uuid` CHAR( 36 ) NOT NULL,"//
+                        + "`uuid` " + uuidType + " NOT NULL,"//
                         + "`name` VARCHAR( 100 ) NOT NULL ,"//
                         + "`lastSeen` BIGINT NOT NULL DEFAULT '0',"//
                         + "PRIMARY KEY ( `uuid` ), INDEX ( `name` ) ) ENGINE = innodb");
@@ -93,7 +203,14 @@ public class UUIDDatabase {
 
         selectPlayerProfileByUUID = "SELECT profile, lastSeen FROM " + profilesTableName + " WHERE uuid = ?";
 
-        deleteOldPlayerProfiles = "DELETE FROM " + profilesTableName + " WHERE lastSeen < ?";
+        rewritePlayerProfile = "UPDATE " + profilesTableName + " SET profile = ? WHERE uuid = ? AND lastSeen = ?";
+
+        // ordered, so the statement is deterministic for replication and walks the lastSeen index
+        deleteOldPlayerProfiles = "DELETE FROM " + profilesTableName + " WHERE lastSeen < ? ORDER BY lastSeen LIMIT ?";
+        profileExpiryChunkSize = config.getProfileExpiryChunkSize();
+        profileExpiryPause = config.getProfileExpiryPause();
+        profileExpiryTimeBudget = config.getProfileExpiryTimeBudget();
+        profileExpiryLock = config.getDatabase() + "." + profilesTableName + ".expiry";
 
         insertNameHistory = "INSERT INTO " + nameHistoriesTableName + " (uuid, firstName, refreshed) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE refreshed = ?";
 
@@ -101,9 +218,11 @@ public class UUIDDatabase {
 
         insertNameChange = "INSERT IGNORE INTO " + nameChangesTableName + " (uuid, date, newName) VALUES (?, ?, ?)";
 
-        selectNameHistory = "SELECT firstName, refreshed FROM " + nameHistoriesTableName + " WHERE uuid = ?";
+        String selectNameHistoriesWithChanges = "SELECT h.uuid, h.firstName, c.date, c.newName FROM " + nameHistoriesTableName + " h LEFT JOIN " + nameChangesTableName + " c ON c.uuid = h.uuid";
 
-        selectNameChanges = "SELECT date, newName FROM " + nameChangesTableName + " WHERE uuid = ?";
+        selectNameHistory = selectNameHistoriesWithChanges + " WHERE h.uuid = ?";
+
+        selectNameHistories = selectNameHistoriesWithChanges + " WHERE h.uuid IN (" + String.join(", ", Collections.nCopies(batchSize, "?")) + ")";
 
         selectNameUsers = "SELECT uuid, date FROM ((SELECT uuid, 0 AS date FROM " + nameHistoriesTableName + " WHERE firstName = ?) UNION (SELECT uuid, lastSeen AS date FROM " + tableName + " WHERE name = ?) UNION (SELECT uuid, date FROM " + nameChangesTableName
                 + " WHERE newName = ?)) AS t ORDER BY date DESC";
@@ -112,7 +231,7 @@ public class UUIDDatabase {
             if (!sqlConnection.hasTable(nameHistoriesTableName)) {
                 Statement smt = connection.createStatement();
                 smt.executeUpdate("CREATE TABLE `" + nameHistoriesTableName + "` ("//
-                        + "`uuid` CHAR( 36 ) NOT NULL,"//
+                        + "`uuid` " + uuidType + " NOT NULL,"//
                         + "`firstName` VARCHAR( 16 ) NOT NULL,"//
                         + "`refreshed` BIGINT NOT NULL DEFAULT '0',"//
                         + "PRIMARY KEY ( `uuid` ), INDEX ( `firstName` ) ) ENGINE = innodb");
@@ -130,7 +249,7 @@ public class UUIDDatabase {
             if (!sqlConnection.hasTable(nameChangesTableName)) {
                 Statement smt = connection.createStatement();
                 smt.executeUpdate("CREATE TABLE `" + nameChangesTableName + "` ("//
-                        + "`uuid` CHAR( 36 ) NOT NULL,"//
+                        + "`uuid` " + uuidType + " NOT NULL,"//
                         + "`date` BIGINT NOT NULL,"//
                         + "`newName` VARCHAR( 16 ) NOT NULL,"//
                         + "PRIMARY KEY ( `uuid`, `date` ), INDEX( `newName` ) ) ENGINE = innodb");
@@ -139,14 +258,279 @@ public class UUIDDatabase {
             return null;
         });
 
+        if (nameSearchMode == NameSearchMode.SUBSTRING) {
+            createNameTrigramsTable();
+        }
+    }
+
+    /**
+     * Finds out which type the uuid columns use. New databases use BINARY(16). Existing CHAR(36) tables are migrated
+     * if enabled, or if a previous migration was interrupted. Otherwise CHAR(36) is kept for all tables.
+     *
+     * @return true if BINARY(16) is used
+     */
+    private boolean initUUIDType(boolean migrate) throws SQLException {
+        // tables referenced in the catch-up conditions of other tables are migrated later
+        String[] tables = { nameTrigramsTableName, nameChangesTableName, nameHistoriesTableName, profilesTableName, tableName };
+        List<String> charTables = new ArrayList<>();
+        boolean anyBinary = false;
+        for (String table : tables) {
+            String type = connection.getColumnType(table, "uuid");
+            if ("binary".equals(type)) {
+                anyBinary = true;
+            } else if (type != null) {
+                charTables.add(table);
+            }
+        }
+        if (charTables.isEmpty()) {
+            return true;
+        }
+        if (!migrate && !anyBinary) {
+            return false;
+        }
+        for (String table : charTables) {
+            migrateToBinaryUUIDs(table);
+        }
+        return true;
+    }
+
+    private String getMigrationColumns(String table) {
+        if (table.equals(tableName)) {
+            return "name, lastSeen";
+        } else if (table.equals(profilesTableName)) {
+            return "profile, lastSeen";
+        } else if (table.equals(nameHistoriesTableName)) {
+            return "firstName, refreshed";
+        } else if (table.equals(nameChangesTableName)) {
+            return "date, newName";
+        }
+        return "trigram";
+    }
+
+    /**
+     * Returns the condition for rows that might have been changed by other servers since the given time.
+     */
+    private String getMigrationCatchUpCondition(String table) {
+        if (table.equals(tableName) || table.equals(profilesTableName)) {
+            return "lastSeen >= ?";
+        } else if (table.equals(nameHistoriesTableName)) {
+            return "refreshed >= ?";
+        } else if (table.equals(nameChangesTableName)) {
+            return "uuid IN (SELECT uuid FROM " + nameHistoriesTableName + " WHERE refreshed >= ?)";
+        }
+        return "uuid IN (SELECT uuid FROM " + tableName + " WHERE lastSeen >= ?)";
+    }
+
+    /**
+     * Copies a table with CHAR(36) uuids into a new table with BINARY(16) uuids and swaps the tables. The old table
+     * stays in use while the rows are copied in chunks of uuids. Rows changed meanwhile are copied again in two catch-up
+     * passes before the tables are renamed. The old table is kept as table_char.
+     */
+    private void migrateToBinaryUUIDs(String table) throws SQLException {
+        String newTable = table + "_binary";
+        String oldTable = table + "_char";
+        String columns = getMigrationColumns(table);
+        String validUUID = "uuid REGEXP '^[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}$'";
+        String copy = "INSERT IGNORE INTO " + newTable + " (uuid, " + columns + ") SELECT UNHEX(REPLACE(uuid, '-', '')), " + columns + " FROM " + table;
+        String selectChunkEnd = "SELECT uuid FROM " + table + " WHERE uuid > ? ORDER BY uuid LIMIT 1 OFFSET " + (MIGRATION_CHUNK_SIZE - 1);
+        String copyChunk = copy + " WHERE uuid > ? AND uuid <= ? AND " + validUUID;
+        String copyLastChunk = copy + " WHERE uuid > ? AND " + validUUID;
+        String catchUp = "REPLACE INTO " + newTable + " (uuid, " + columns + ") SELECT UNHEX(REPLACE(uuid, '-', '')), " + columns + " FROM " + table + " WHERE " + getMigrationCatchUpCondition(table) + " AND " + validUUID;
+
+        long startTime = System.currentTimeMillis();
+        logger.info("Converting the uuids of " + table + " to binary, this may take a while");
+        this.connection.runCommands((connection, sqlConnection) -> {
+            Statement smt = connection.createStatement();
+            smt.executeUpdate("DROP TABLE IF EXISTS `" + newTable + "`");
+            smt.executeUpdate("CREATE TABLE `" + newTable + "` LIKE `" + table + "`");
+            smt.executeUpdate("ALTER TABLE `" + newTable + "` MODIFY `uuid` BINARY( 16 ) NOT NULL");
+            smt.close();
+            return null;
+        });
+        String chunkStart = "";
+        while (chunkStart != null) {
+            final String after = chunkStart;
+            chunkStart = this.connection.runCommands((connection, sqlConnection) -> {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement(selectChunkEnd);
+                smt.setString(1, after);
+                ResultSet rs = smt.executeQuery();
+                String chunkEnd = rs.next() ? rs.getString(1) : null;
+                rs.close();
+                if (chunkEnd == null) {
+                    smt = sqlConnection.getOrCreateStatement(copyLastChunk);
+                    smt.setString(1, after);
+                } else {
+                    smt = sqlConnection.getOrCreateStatement(copyChunk);
+                    smt.setString(1, after);
+                    smt.setString(2, chunkEnd);
+                }
+                smt.executeUpdate();
+                return chunkEnd;
+            });
+        }
+        long catchUpTime = System.currentTimeMillis();
+        this.connection.runCommands((connection, sqlConnection) -> {
+            PreparedStatement smt = sqlConnection.getOrCreateStatement(catchUp);
+            smt.setLong(1, startTime);
+            smt.executeUpdate();
+            return null;
+        });
+        // other servers may still write, so the last catch-up and the rename run while both tables are locked
+        String locks = "`" + table + "` WRITE, `" + table + "` AS o READ, `" + newTable + "` WRITE, `" + newTable + "` AS n WRITE";
+        String referencedTable = getMigrationReferencedTable(table);
+        if (referencedTable != null) {
+            locks += ", `" + referencedTable + "` READ";
+        }
+        String copyMissing = copy + " WHERE " + validUUID;
+        String deleteRemoved = "DELETE n FROM " + newTable + " AS n LEFT JOIN " + table + " AS o ON o.uuid = " + getMigrationCharUUID("n.uuid") + getMigrationKeyCondition(table) + " WHERE o.uuid IS NULL";
+        String finalLocks = locks;
+        this.connection.runCommands((connection, sqlConnection) -> {
+            Statement smt = connection.createStatement();
+            smt.executeUpdate("DROP TABLE IF EXISTS `" + oldTable + "`");
+            smt.executeUpdate("LOCK TABLES " + finalLocks);
+            try {
+                PreparedStatement catchUpSmt = sqlConnection.getOrCreateStatement(catchUp);
+                catchUpSmt.setLong(1, catchUpTime);
+                catchUpSmt.executeUpdate();
+                // rows added with an older time and rows deleted during the copy, for example expired profiles
+                smt.executeUpdate(copyMissing);
+                smt.executeUpdate(deleteRemoved);
+                try {
+                    smt.executeUpdate("RENAME TABLE `" + table + "` TO `" + oldTable + "`, `" + newTable + "` TO `" + table + "`");
+                } catch (SQLException e) {
+                    // servers before MySQL 8.0.13 cannot rename locked tables, this leaves a short gap for other writers
+                    smt.executeUpdate("UNLOCK TABLES");
+                    smt.executeUpdate("RENAME TABLE `" + table + "` TO `" + oldTable + "`, `" + newTable + "` TO `" + table + "`");
+                }
+            } finally {
+                smt.executeUpdate("UNLOCK TABLES");
+                smt.close();
+            }
+            return null;
+        });
+        logger.info("Converted the uuids of " + table + " to binary in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * @return the table that is used in the catch-up condition of the table, or null
+     */
+    private String getMigrationReferencedTable(String table) {
+        if (table.equals(nameChangesTableName)) {
+            return nameHistoriesTableName;
+        } else if (table.equals(nameTrigramsTableName)) {
+            return tableName;
+        }
+        return null;
+    }
+
+    /**
+     * @return the condition that matches the other primary key columns of the old table o and the new table n
+     */
+    private String getMigrationKeyCondition(String table) {
+        if (table.equals(nameChangesTableName)) {
+            return " AND o.date = n.date";
+        } else if (table.equals(nameTrigramsTableName)) {
+            return " AND o.trigram = n.trigram";
+        }
+        return "";
+    }
+
+    private static String getMigrationCharUUID(String column) {
+        String hex = "HEX(" + column + ")";
+        return "LOWER(CONCAT_WS('-', SUBSTR(" + hex + ", 1, 8), SUBSTR(" + hex + ", 9, 4), SUBSTR(" + hex + ", 13, 4), SUBSTR(" + hex + ", 17, 4), SUBSTR(" + hex + ", 21)))";
     }
 
-    public void createProfilePropertiesTable() throws SQLException {
+    /**
+     * Creates the table of name trigrams if it does not exist and fills it from the players table. The table is filled
+     * under a temporary name and renamed when complete, so an interrupted migration is restarted on the next start.
+     */
+    private void createNameTrigramsTable() throws SQLException {
+        if (connection.hasTable(nameTrigramsTableName)) {
+            return;
+        }
+        String tempTableName = nameTrigramsTableName + "_new";
         this.connection.runCommands((connection, sqlConnection) -> {
+            Statement smt = connection.createStatement();
+            smt.executeUpdate("DROP TABLE IF EXISTS `" + tempTableName + "`");
+            smt.executeUpdate("CREATE TABLE `" + tempTableName + "` ("//
+                    + "`trigram` CHAR( 3 ) CHARACTER SET utf8mb4 COLLATE utf8mb4_bin NOT NULL,"//
+                    + "`uuid` " + uuidType + " NOT NULL,"//
+                    + "PRIMARY KEY ( `trigram`, `uuid` ), INDEX ( `uuid` ) ) ENGINE = innodb");
+            smt.close();
+            return null;
+        });
+        String selectFirstPlayers = "SELECT uuid, name FROM " + tableName + " ORDER BY uuid LIMIT " + MIGRATION_CHUNK_SIZE;
+        String selectPlayersAfter = "SELECT uuid, name FROM " + tableName + " WHERE uuid > ? ORDER BY uuid LIMIT " + MIGRATION_CHUNK_SIZE;
+        String insertTempTrigram = "INSERT IGNORE INTO " + tempTableName + " (trigram, uuid) VALUES (?, ?)";
+        byte[] lastUUID = null;
+        boolean first = true;
+        while (first || lastUUID != null) {
+            final byte[] after = lastUUID;
+            first = false;
+            lastUUID = this.connection.runCommands((connection, sqlConnection) -> {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement(after == null ? selectFirstPlayers : selectPlayersAfter);
+                if (after != null) {
+                    smt.setBytes(1, after);
+                }
+                ResultSet rs = smt.executeQuery();
+                PreparedStatement insert = sqlConnection.getOrCreateStatement(insertTempTrigram);
+                byte[] last = null;
+                while (rs.next()) {
+                    // the raw column value works for both uuid types
+                    last = rs.getBytes(1);
+                    for (String trigram : getNameTrigrams(rs.getString(2))) {
+                        insert.setString(1, trigram);
+                        insert.setBytes(2, last);
+                        insert.addBatch();
+                    }
+                }
+                rs.close();
+                insert.executeBatch();
+                return last;
+            });
+        }
+        this.connection.runCommands((connection, sqlConnection) -> {
+            Statement smt = connection.createStatement();
+            smt.executeUpdate("RENAME TABLE `" + tempTableName + "` TO `" + nameTrigramsTableName + "`");
+            smt.close();
+            return null;
+        });
+    }
+
+    /**
+     * Returns the distinct lowercase trigrams of a name.
+     */
+    static Set<String> getNameTrigrams(String name) {
+        String lowerName = name.toLowerCase();
+        Set<String> trigrams = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= lowerName.length(); i++) {
+            trigrams.add(lowerName.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    @Override
+    public boolean supportsLookups() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsNameHistories() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsProfiles() {
+        return true;
+    }
+
+    @Override
+    public void enableProfiles() throws StorageException {
+        runWrite((connection, sqlConnection) -> {
             if (!sqlConnection.hasTable(profilesTableName)) {
                 Statement smt = connection.createStatement();
                 smt.executeUpdate("CREATE TABLE `" + profilesTableName + "` ("//
-                        + "`uuid` CHAR( 36 ) NOT NULL,"//
+                        + "`uuid` " + uuidType + " NOT NULL,"//
                         + "`profile` MEDIUMTEXT NOT NULL ,"//
                         + "`lastSeen` BIGINT NOT NULL DEFAULT '0',"//
                         + "PRIMARY KEY ( `uuid` ), INDEX ( `lastSeen` ) ) ENGINE = innodb");
@@ -157,28 +541,182 @@ public class UUIDDatabase {
         mayUseProfilesTable = true;
     }
 
-    public void addOrUpdatePlayers(final CachedPlayer... entries) throws SQLException {
+    @Override
+    public void addOrUpdatePlayers(final CachedPlayer... entries) throws StorageException {
         if (entries == null || entries.length == 0) {
             return;
         }
-        this.connection.runCommands((connection, sqlConnection) -> {
-            PreparedStatement smt = sqlConnection.getOrCreateStatement(insertPlayer);
-            for (CachedPlayer entry : entries) {
-                smt.setString(1, entry.getUUID().toString());
-                smt.setString(2, entry.getName());
-                smt.setLong(3, entry.getLastSeen());
-                smt.setString(4, entry.getName());
-                smt.setLong(5, entry.getLastSeen());
-                smt.executeUpdate();
+        for (CachedPlayer entry : entries) {
+            recordWrite(entry.getUUID());
+            recordWrite(entry.getName().toLowerCase());
+        }
+        // every chunk is written in its own transaction, so large imports do not build one huge transaction
+        for (int start = 0; start < entries.length; start += batchSize) {
+            final CachedPlayer[] chunk = Arrays.copyOfRange(entries, start, Math.min(entries.length, start + batchSize));
+            runWrite((connection, sqlConnection) -> {
+                if (nameSearchMode == NameSearchMode.SUBSTRING) {
+                    updateNameTrigrams(sqlConnection, chunk);
+                }
+                PreparedStatement smt = sqlConnection.getOrCreateStatement(insertPlayer);
+                for (CachedPlayer entry : chunk) {
+                    setUUID(smt, 1, entry.getUUID());
+                    smt.setString(2, entry.getName());
+                    smt.setLong(3, entry.getLastSeen());
+                    smt.addBatch();
+                }
+                smt.executeBatch();
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Replaces the trigrams of all entries whose name is new or changed. Entries that are older than the stored player
+     * are skipped, like in the update of the players. Must be called before the players are updated. At most batchSize
+     * entries may be passed.
+     */
+    private void updateNameTrigrams(SQLConnection sqlConnection, CachedPlayer[] entries) throws SQLException {
+        PreparedStatement select = sqlConnection.getOrCreateStatement(selectPlayersByUUIDs);
+        for (int i = 0; i < batchSize; i++) {
+            // unused parameters repeat the last uuid, so there is only one statement for all chunk sizes
+            setUUID(select, i + 1, entries[Math.min(i, entries.length - 1)].getUUID());
+        }
+        Map<UUID, CachedPlayer> oldEntries = new HashMap<>();
+        ResultSet rs = select.executeQuery();
+        while (rs.next()) {
+            try {
+                UUID uuid = getUUID(rs, 1);
+                oldEntries.put(uuid, new CachedPlayer(uuid, rs.getString(2), rs.getLong(3), 0));
+            } catch (IllegalArgumentException e) {
+                // ignore invalid uuid
             }
-            return null;
-        });
+        }
+        rs.close();
+
+        PreparedStatement delete = sqlConnection.getOrCreateStatement(deleteNameTrigrams);
+        PreparedStatement insert = sqlConnection.getOrCreateStatement(insertNameTrigram);
+        boolean deleted = false;
+        boolean inserted = false;
+        // only the newest entry of a player in this chunk is stored
+        Map<UUID, CachedPlayer> newestEntries = new LinkedHashMap<>();
+        for (CachedPlayer entry : entries) {
+            newestEntries.merge(entry.getUUID(), entry, (oldEntry, newEntry) -> newEntry.getLastSeen() >= oldEntry.getLastSeen() ? newEntry : oldEntry);
+        }
+        for (CachedPlayer entry : newestEntries.values()) {
+            UUID uuid = entry.getUUID();
+            CachedPlayer oldEntry = oldEntries.get(uuid);
+            if (oldEntry != null && (oldEntry.getLastSeen() > entry.getLastSeen() || oldEntry.getName().equalsIgnoreCase(entry.getName()))) {
+                continue;
+            }
+            if (oldEntry != null) {
+                setUUID(delete, 1, uuid);
+                delete.addBatch();
+                deleted = true;
+            }
+            for (String trigram : getNameTrigrams(entry.getName())) {
+                insert.setString(1, trigram);
+                setUUID(insert, 2, uuid);
+                insert.addBatch();
+                inserted = true;
+            }
+        }
+        if (deleted) {
+            delete.executeBatch();
+        }
+        if (inserted) {
+            insert.executeBatch();
+        }
+    }
+
+    private void setUUID(PreparedStatement smt, int index, UUID uuid) throws SQLException {
+        if (binaryUUIDs) {
+            smt.setBytes(index, SQLUtil.uuidToBytes(uuid));
+        } else {
+            smt.setString(index, uuid.toString());
+        }
+    }
+
+    private UUID getUUID(ResultSet rs, int index) throws SQLException {
+        return binaryUUIDs ? SQLUtil.bytesToUUID(rs.getBytes(index)) : UUID.fromString(rs.getString(index));
+    }
+
+    private void recordWrite(Object key) {
+        if (readConnections.isEmpty() || readYourWritesTime <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        recentWrites.put(key, now + readYourWritesTime);
+        if (recentWrites.size() > RECENT_WRITES_PURGE_SIZE) {
+            recentWrites.values().removeIf(until -> until <= now);
+        }
+    }
+
+    private boolean isRecentlyWritten(Object key) {
+        if (key == null) {
+            return false;
+        }
+        Long until = recentWrites.get(key);
+        if (until == null) {
+            return false;
+        }
+        if (until <= System.currentTimeMillis()) {
+            recentWrites.remove(key, until);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs a query on one of the read hosts, chosen round robin. The primary is used if there are no read hosts, if the
+     * key was written by this server within the read-your-writes time, or if the read host fails.
+     *
+     * @param key
+     *            the UUID or lowercase name that is read, or null
+     */
+    private <T> T runRead(Object key, SQLRunnable<T> runnable) throws StorageException {
+        return runRead(isRecentlyWritten(key), runnable);
+    }
+
+    private <T> T runRead(boolean usePrimary, SQLRunnable<T> runnable) throws StorageException {
+        if (!readConnections.isEmpty() && !usePrimary) {
+            SQLConnection readConnection = readConnections.get(Math.floorMod(nextReadConnection.getAndIncrement(), readConnections.size()));
+            try {
+                return readConnection.runCommands(runnable);
+            } catch (SQLException e) {
+                logReadFailure(e);
+                // use the primary
+            }
+        }
+        return runWrite(runnable);
+    }
+
+    private void logReadFailure(SQLException e) {
+        long now = System.currentTimeMillis();
+        long last = lastReadFailureLog.get();
+        if (now - last >= READ_FAILURE_LOG_INTERVAL && lastReadFailureLog.compareAndSet(last, now)) {
+            int suppressed = unloggedReadFailures.getAndSet(0);
+            logger.log(Level.WARNING, "Error while trying to read from a read replica, using the primary instead" + (suppressed > 0 ? " (" + suppressed + " more failures since the last message)" : ""), e);
+        } else {
+            unloggedReadFailures.incrementAndGet();
+        }
     }
 
-    public CachedPlayer getPlayer(final UUID uuid) throws SQLException {
-        return this.connection.runCommands((connection, sqlConnection) -> {
+    /**
+     * Runs the commands on the primary.
+     */
+    private <T> T runWrite(SQLRunnable<T> runnable) throws StorageException {
+        try {
+            return this.connection.runCommands(runnable);
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public CachedPlayer getPlayer(final UUID uuid) throws StorageException {
+        return runRead(uuid, (connection, sqlConnection) -> {
             PreparedStatement smt = sqlConnection.getOrCreateStatement(selectPlayerByUUID);
-            smt.setString(1, uuid.toString());
+            setUUID(smt, 1, uuid);
             ResultSet rs = smt.executeQuery();
             if (rs.next()) {
                 String name = rs.getString(1);
@@ -191,8 +729,9 @@ public class UUIDDatabase {
         });
     }
 
-    public CachedPlayer getPlayer(final String name) throws SQLException {
-        return this.connection.runCommands((connection, sqlConnection) -> {
+    @Override
+    public CachedPlayer getPlayer(final String name) throws StorageException {
+        return runRead(name.toLowerCase(), (connection, sqlConnection) -> {
             String realName = name;
             PreparedStatement smt = sqlConnection.getOrCreateStatement(selectPlayerByName);
             smt.setString(1, name);
@@ -204,7 +743,7 @@ public class UUIDDatabase {
                 long thisTime = rs.getLong(3);
                 if (thisTime > time) {
                     try {
-                        uuid = UUID.fromString(rs.getString(1));
+                        uuid = getUUID(rs, 1);
                         realName = rs.getString(2);
                         time = thisTime;
                     } catch (IllegalArgumentException e) {
@@ -220,16 +759,46 @@ public class UUIDDatabase {
         });
     }
 
-    public List<CachedPlayer> searchPlayers(final String partialName) throws SQLException {
-        return this.connection.runCommands((connection, sqlConnection) -> {
-            PreparedStatement smt = sqlConnection.getOrCreateStatement(searchPlayersByPartialName);
-            smt.setString(1, "%" + SQLUtil.escapeLike(partialName) + "%");
+    /**
+     * Searches for players whose names contain the given string. In prefix mode only names starting with the string
+     * are found.
+     *
+     * @param partialName
+     *            a part of a name
+     * @param limit
+     *            the maximum number of results, or 0 for no limit
+     * @param offset
+     *            the number of results to skip
+     * @return the players, the most recently seen first
+     */
+    @Override
+    public List<CachedPlayer> searchPlayers(final String partialName, int limit, int offset) throws StorageException {
+        return runRead(null, (connection, sqlConnection) -> {
+            PreparedStatement smt;
+            int index = 1;
+            if (nameSearchMode == NameSearchMode.PREFIX) {
+                smt = sqlConnection.getOrCreateStatement(searchPlayersByPartialName);
+                smt.setString(index++, SQLUtil.escapeLike(partialName) + "%");
+            } else {
+                Set<String> trigrams = getNameTrigrams(partialName);
+                if (trigrams.isEmpty()) {
+                    smt = sqlConnection.getOrCreateStatement(searchPlayersByPartialName);
+                } else {
+                    smt = sqlConnection.getOrCreateStatement(getSearchPlayersByTrigramsStatement(trigrams.size()));
+                    for (String trigram : trigrams) {
+                        smt.setString(index++, trigram);
+                    }
+                }
+                smt.setString(index++, "%" + SQLUtil.escapeLike(partialName) + "%");
+            }
+            smt.setLong(index++, limit > 0 ? limit : Long.MAX_VALUE);
+            smt.setInt(index++, offset);
             ResultSet rs = smt.executeQuery();
 
             List<CachedPlayer> result = new ArrayList<>();
             while (rs.next()) {
                 try {
-                    UUID uuid = UUID.fromString(rs.getString(1));
+                    UUID uuid = getUUID(rs, 1);
                     String name = rs.getString(2);
                     long time = rs.getLong(3);
                     result.add(new CachedPlayer(uuid, name, time, System.currentTimeMillis()));
@@ -242,45 +811,215 @@ public class UUIDDatabase {
         });
     }
 
-    public Set<CachedPlayer> getAllPlayers() throws SQLException {
-        return this.connection.runCommands((connection, sqlConnection) -> {
-            PreparedStatement smt = sqlConnection.getOrCreateStatement(selectAllPlayers);
-            ResultSet rs = smt.executeQuery();
+    private String getSearchPlayersByTrigramsStatement(int trigramCount) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT p.uuid, p.name, p.lastSeen FROM ").append(tableName).append(" p JOIN (SELECT uuid FROM ").append(nameTrigramsTableName).append(" WHERE trigram IN (");
+        for (int i = 0; i < trigramCount; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        sb.append(") GROUP BY uuid HAVING COUNT(*) = ").append(trigramCount).append(") t ON p.uuid = t.uuid WHERE p.name LIKE ? ORDER BY p.lastSeen DESC LIMIT ? OFFSET ?");
+        return sb.toString();
+    }
 
-            Set<CachedPlayer> result = new HashSet<>();
-            while (rs.next()) {
+    /**
+     * Loads many players by their UUIDs with one query per batchSize players.
+     *
+     * @param uuids
+     *            the UUIDs
+     * @return the players found
+     */
+    @Override
+    public List<CachedPlayer> getPlayers(final Collection<UUID> uuids) throws StorageException {
+        List<CachedPlayer> result = new ArrayList<>();
+        UUID[] all = uuids.toArray(new UUID[uuids.size()]);
+        for (int start = 0; start < all.length; start += batchSize) {
+            final UUID[] chunk = Arrays.copyOfRange(all, start, Math.min(all.length, start + batchSize));
+            boolean recentlyWritten = false;
+            for (UUID uuid : chunk) {
+                recentlyWritten |= isRecentlyWritten(uuid);
+            }
+            result.addAll(runRead(recentlyWritten, (connection, sqlConnection) -> {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement(selectPlayersByUUIDs);
+                for (int i = 0; i < batchSize; i++) {
+                    setUUID(smt, i + 1, chunk[Math.min(i, chunk.length - 1)]);
+                }
+                return readPlayers(smt);
+            }));
+        }
+        return result;
+    }
+
+    /**
+     * Loads many players by their names with one query per batchSize names. If there are several players with the same
+     * name, the player seen last is returned.
+     *
+     * @param names
+     *            the names
+     * @return the players found
+     */
+    @Override
+    public Collection<CachedPlayer> getPlayersByName(final Collection<String> names) throws StorageException {
+        Map<String, CachedPlayer> result = new HashMap<>();
+        String[] all = names.toArray(new String[names.size()]);
+        for (int start = 0; start < all.length; start += batchSize) {
+            final String[] chunk = Arrays.copyOfRange(all, start, Math.min(all.length, start + batchSize));
+            boolean recentlyWritten = false;
+            for (String name : chunk) {
+                recentlyWritten |= isRecentlyWritten(name.toLowerCase());
+            }
+            List<CachedPlayer> players = runRead(recentlyWritten, (connection, sqlConnection) -> {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement(selectPlayersByNames);
+                for (int i = 0; i < batchSize; i++) {
+                    smt.setString(i + 1, chunk[Math.min(i, chunk.length - 1)]);
+                }
+                return readPlayers(smt);
+            });
+            for (CachedPlayer player : players) {
+                result.merge(player.getName().toLowerCase(), player, (oldPlayer, newPlayer) -> newPlayer.getLastSeen() > oldPlayer.getLastSeen() ? newPlayer : oldPlayer);
+            }
+        }
+        return result.values();
+    }
+
+    private List<CachedPlayer> readPlayers(PreparedStatement smt) throws SQLException {
+        ResultSet rs = smt.executeQuery();
+        List<CachedPlayer> result = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        while (rs.next()) {
+            try {
+                result.add(new CachedPlayer(getUUID(rs, 1), rs.getString(2), rs.getLong(3), now));
+            } catch (IllegalArgumentException e) {
+                // ignore invalid uuid
+            }
+        }
+        rs.close();
+        return result;
+    }
+
+    /**
+     * Streams all players from the database and passes them in chunks of batchSize players to the consumer, so the
+     * whole table is never held in memory. If more than one load thread is configured, the table is split into ranges of
+     * UUIDs that are loaded in parallel, the consumer must be thread safe then. If a load fails and is retried, some
+     * players may be passed more than once.
+     *
+     * @param chunkConsumer
+     *            receives the loaded players
+     * @return the number of loaded players
+     */
+    @Override
+    public int loadAllPlayers(Consumer<CachedPlayer[]> chunkConsumer) throws StorageException {
+        if (loadThreads <= 1) {
+            return loadPlayersInRange(-1, -1, chunkConsumer);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(loadThreads);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < loadThreads; i++) {
+                // ranges of the first byte of the uuids
+                int lower = i == 0 ? -1 : i * 256 / loadThreads;
+                int upper = i == loadThreads - 1 ? -1 : (i + 1) * 256 / loadThreads;
+                futures.add(executor.submit(() -> loadPlayersInRange(lower, upper, chunkConsumer)));
+            }
+            int count = 0;
+            for (Future<Integer> future : futures) {
                 try {
-                    UUID uuid = UUID.fromString(rs.getString(1));
-                    String name = rs.getString(2);
-                    long time = rs.getLong(3);
-                    result.add(new CachedPlayer(uuid, name, time, System.currentTimeMillis()));
-                } catch (IllegalArgumentException e) {
-                    // ignore invalid uuid
+                    count += future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof StorageException cause) {
+                        throw cause;
+                    }
+                    throw new StorageException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StorageException(e);
                 }
             }
-            rs.close();
-            return result;
+            return count;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Streams the players whose uuid starts with a byte in the given range.
+     *
+     * @param lower
+     *            the first byte of the range, or -1 for no lower bound
+     * @param upper
+     *            the first byte after the range, or -1 for no upper bound
+     */
+    private int loadPlayersInRange(int lower, int upper, Consumer<CachedPlayer[]> chunkConsumer) throws StorageException {
+        StringBuilder query = new StringBuilder(selectAllPlayers);
+        if (lower >= 0) {
+            query.append(" WHERE uuid >= ?");
+        }
+        if (upper >= 0) {
+            query.append(lower >= 0 ? " AND" : " WHERE").append(" uuid < ?");
+        }
+        return runRead(null, (connection, sqlConnection) -> {
+            // a forward only statement with this fetch size makes the driver stream the rows instead of loading all
+            PreparedStatement smt = connection.prepareStatement(query.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            try {
+                smt.setFetchSize(Integer.MIN_VALUE);
+                int index = 1;
+                for (int bound : new int[] { lower, upper }) {
+                    if (bound >= 0) {
+                        if (binaryUUIDs) {
+                            smt.setBytes(index++, new byte[] { (byte) bound });
+                        } else {
+                            smt.setString(index++, String.format("%02x", bound));
+                        }
+                    }
+                }
+                ResultSet rs = smt.executeQuery();
+                int count = 0;
+                long now = System.currentTimeMillis();
+                CachedPlayer[] chunk = new CachedPlayer[batchSize];
+                int chunkSize = 0;
+                while (rs.next()) {
+                    try {
+                        chunk[chunkSize++] = new CachedPlayer(getUUID(rs, 1), rs.getString(2), rs.getLong(3), now);
+                    } catch (IllegalArgumentException e) {
+                        // ignore invalid uuid
+                        continue;
+                    }
+                    if (chunkSize == chunk.length) {
+                        chunkConsumer.accept(chunk);
+                        count += chunkSize;
+                        chunk = new CachedPlayer[batchSize];
+                        chunkSize = 0;
+                    }
+                }
+                rs.close();
+                if (chunkSize > 0) {
+                    chunkConsumer.accept(Arrays.copyOf(chunk, chunkSize));
+                    count += chunkSize;
+                }
+                return count;
+            } finally {
+                smt.close();
+            }
         });
     }
 
-    public void disconnect() {
+    @Override
+    public void close() {
         connection.disconnect();
+        for (SQLConnection readConnection : readConnections) {
+            readConnection.disconnect();
+        }
     }
 
-    public void addOrUpdatePlayerProfile(CachedPlayerProfile entry) throws SQLException {
+    @Override
+    public void addOrUpdatePlayerProfile(CachedPlayerProfile entry) throws StorageException {
         if (!mayUseProfilesTable) {
             return;
         }
-        this.connection.runCommands((connection, sqlConnection) -> {
+        recordWrite(entry.getUUID());
+        runWrite((connection, sqlConnection) -> {
             PreparedStatement smt = sqlConnection.getOrCreateStatement(insertPlayerProfile);
-            smt.setString(1, entry.getUUID().toString());
-            YamlConfiguration yaml = new YamlConfiguration();
-            for (ProfileProperty pp : entry.getProperties()) {
-                ConfigurationSection section = yaml.createSection(pp.getName());
-                section.set("value", pp.getValue());
-                section.set("signature", pp.getSignature());
-            }
-            String properties = yaml.saveToString();
+            setUUID(smt, 1, entry.getUUID());
+            String properties = ProfilePropertiesCodec.encode(entry.getProperties());
             smt.setString(2, properties);
             smt.setLong(3, entry.getLastSeen());
             smt.setString(4, properties);
@@ -290,101 +1029,210 @@ public class UUIDDatabase {
         });
     }
 
-    public CachedPlayerProfile getPlayerProfile(UUID uuid) throws SQLException {
+    @Override
+    public CachedPlayerProfile getPlayerProfile(UUID uuid) throws StorageException {
         if (!mayUseProfilesTable) {
             return null;
         }
-        return this.connection.runCommands((connection, sqlConnection) -> {
+        boolean[] oldFormat = new boolean[1];
+        CachedPlayerProfile profile = runRead(uuid, (connection, sqlConnection) -> {
             PreparedStatement smt = sqlConnection.getOrCreateStatement(selectPlayerProfileByUUID);
-            smt.setString(1, uuid.toString());
+            setUUID(smt, 1, uuid);
             ResultSet rs = smt.executeQuery();
             if (rs.next()) {
-                YamlConfiguration yaml = new YamlConfiguration();
-                try {
-                    yaml.loadFromString(rs.getString(1));
-                } catch (Throwable t) {
-                    return null;
-                }
-                LinkedHashSet<ProfileProperty> properties = new LinkedHashSet<>();
-                for (String name : yaml.getKeys(false)) {
-                    ConfigurationSection section = yaml.getConfigurationSection(name);
-                    if (section != null) {
-                        String value = section.getString("value");
-                        String signature = section.getString("signature");
-                        properties.add(new ProfileProperty(name, value, signature));
-                    }
-                }
-
+                String encoded = rs.getString(1);
                 long time = rs.getLong(2);
                 rs.close();
+                LinkedHashSet<ProfileProperty> properties = ProfilePropertiesCodec.decode(encoded);
+                if (properties == null) {
+                    return null;
+                }
+                oldFormat[0] = !ProfilePropertiesCodec.isCurrentFormat(encoded);
                 return new CachedPlayerProfile(uuid, properties, time, System.currentTimeMillis());
             }
             rs.close();
             return null;
         });
+        if (profile != null && oldFormat[0]) {
+            try {
+                rewritePlayerProfile(profile);
+            } catch (SQLException e) {
+                // it is rewritten on the next read
+            }
+        }
+        return profile;
     }
 
-    public void deleteOldPlayerProfiles() throws SQLException {
+    /**
+     * Stores a profile that was read in an old format in the current format, unless it was updated meanwhile.
+     */
+    private void rewritePlayerProfile(CachedPlayerProfile profile) throws SQLException {
         this.connection.runCommands((connection, sqlConnection) -> {
-            PreparedStatement smt = sqlConnection.getOrCreateStatement(deleteOldPlayerProfiles);
-            smt.setLong(1, System.currentTimeMillis() - PlayerUUIDCache.PROFILE_PROPERTIES_CACHE_EXPIRATION_TIME * 2);
+            PreparedStatement smt = sqlConnection.getOrCreateStatement(rewritePlayerProfile);
+            smt.setString(1, ProfilePropertiesCodec.encode(profile.getProperties()));
+            setUUID(smt, 2, profile.getUUID());
+            smt.setLong(3, profile.getLastSeen());
             smt.executeUpdate();
             return null;
         });
     }
 
-    public void addOrUpdateHistory(final NameHistory history) throws SQLException {
-        this.connection.runCommands((connection, sqlConnection) -> {
+    /**
+     * Deletes old profiles in chunks. Every chunk is committed on its own with a pause after it, so inserts are never
+     * blocked for long. The run stops when the time budget is used up, the remaining profiles are deleted by the next
+     * run. Only one server of the network deletes at a time, the others skip their run.
+     */
+    @Override
+    public int deleteOldPlayerProfiles() throws StorageException {
+        long start = System.currentTimeMillis();
+        long minLastSeen = start - PlayerUUIDCache.PROFILE_PROPERTIES_CACHE_EXPIRATION_TIME * 2;
+        return runWrite((connection, sqlConnection) -> {
+            PreparedStatement smt = sqlConnection.getOrCreateStatement("SELECT GET_LOCK(?, 0)");
+            smt.setString(1, profileExpiryLock);
+            ResultSet rs = smt.executeQuery();
+            boolean locked = rs.next() && rs.getInt(1) == 1;
+            rs.close();
+            if (!locked) {
+                return -1;
+            }
+            try {
+                int deleted = 0;
+                smt = sqlConnection.getOrCreateStatement(deleteOldPlayerProfiles);
+                while (true) {
+                    smt.setLong(1, minLastSeen);
+                    smt.setInt(2, profileExpiryChunkSize);
+                    int count = smt.executeUpdate();
+                    connection.commit();
+                    deleted += count;
+                    if (count < profileExpiryChunkSize || System.currentTimeMillis() - start >= profileExpiryTimeBudget) {
+                        return deleted;
+                    }
+                    if (profileExpiryPause > 0) {
+                        try {
+                            Thread.sleep(profileExpiryPause);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return deleted;
+                        }
+                    }
+                }
+            } finally {
+                smt = sqlConnection.getOrCreateStatement("SELECT RELEASE_LOCK(?)");
+                smt.setString(1, profileExpiryLock);
+                smt.executeQuery().close();
+            }
+        });
+    }
+
+    public void addOrUpdateHistory(final NameHistory history) throws StorageException {
+        addOrUpdateHistory(history, history.getNameChanges());
+    }
+
+    /**
+     * Stores a name history. Only the given name changes are inserted, the others must already be stored.
+     *
+     * @param history
+     *            the history
+     * @param newChanges
+     *            the changes that were added since the history was loaded
+     */
+    @Override
+    public void addOrUpdateHistory(final NameHistory history, final Collection<NameChange> newChanges) throws StorageException {
+        recordWrite(history.getUUID());
+        recordWrite(history.getFirstName().toLowerCase());
+        for (NameChange change : history.getNameChanges()) {
+            recordWrite(change.getNewName().toLowerCase());
+        }
+        runWrite((connection, sqlConnection) -> {
             PreparedStatement smt = sqlConnection.getOrCreateStatement(insertNameHistory);
-            smt.setString(1, history.getUUID().toString());
+            setUUID(smt, 1, history.getUUID());
             smt.setString(2, history.getFirstName());
             smt.setLong(3, history.getCacheLoadTime());
             smt.setLong(4, history.getCacheLoadTime());
             smt.executeUpdate();
 
-            smt = sqlConnection.getOrCreateStatement(insertNameChange);
-            for (NameChange change : history.getNameChanges()) {
-                smt.setString(1, history.getUUID().toString());
-                smt.setLong(2, change.getDate());
-                smt.setString(3, change.getNewName());
-                smt.addBatch();
+            if (!newChanges.isEmpty()) {
+                smt = sqlConnection.getOrCreateStatement(insertNameChange);
+                for (NameChange change : newChanges) {
+                    setUUID(smt, 1, history.getUUID());
+                    smt.setLong(2, change.getDate());
+                    smt.setString(3, change.getNewName());
+                    smt.addBatch();
+                }
+                smt.executeBatch();
             }
-            smt.executeBatch();
 
             return null;
         });
     }
 
-    public NameHistory getNameHistory(final UUID uuid) throws SQLException {
-        return this.connection.runCommands((connection, sqlConnection) -> {
+    @Override
+    public NameHistory getNameHistory(final UUID uuid) throws StorageException {
+        return runRead(uuid, (connection, sqlConnection) -> {
             PreparedStatement smt = sqlConnection.getOrCreateStatement(selectNameHistory);
-            smt.setString(1, uuid.toString());
-            ResultSet rs = smt.executeQuery();
+            setUUID(smt, 1, uuid);
+            return readNameHistories(smt).get(uuid);
+        });
+    }
 
-            if (!rs.next()) {
-                return null;
+    /**
+     * Loads the name histories of many players with one query per batchSize players.
+     *
+     * @param uuids
+     *            the UUIDs of the players
+     * @return the found histories
+     */
+    @Override
+    public Map<UUID, NameHistory> getNameHistories(final Collection<UUID> uuids) throws StorageException {
+        Map<UUID, NameHistory> result = new HashMap<>();
+        UUID[] all = uuids.toArray(new UUID[uuids.size()]);
+        for (int start = 0; start < all.length; start += batchSize) {
+            final UUID[] chunk = Arrays.copyOfRange(all, start, Math.min(all.length, start + batchSize));
+            boolean recentlyWritten = false;
+            for (UUID uuid : chunk) {
+                recentlyWritten |= isRecentlyWritten(uuid);
             }
+            result.putAll(runRead(recentlyWritten, (connection, sqlConnection) -> {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement(selectNameHistories);
+                for (int i = 0; i < batchSize; i++) {
+                    setUUID(smt, i + 1, chunk[Math.min(i, chunk.length - 1)]);
+                }
+                return readNameHistories(smt);
+            }));
+        }
+        return result;
+    }
 
-            String firstName = rs.getString(1);
-            // long refreshed = rs.getLong(2);
-            rs.close();
-
-            smt = sqlConnection.getOrCreateStatement(selectNameChanges);
-            smt.setString(1, uuid.toString());
-            rs = smt.executeQuery();
-
-            List<NameChange> changes = new ArrayList<>();
-            while (rs.next()) {
-                changes.add(new NameChange(rs.getString(2), rs.getLong(1)));
+    private Map<UUID, NameHistory> readNameHistories(PreparedStatement smt) throws SQLException {
+        Map<UUID, String> firstNames = new HashMap<>();
+        Map<UUID, List<NameChange>> changes = new HashMap<>();
+        ResultSet rs = smt.executeQuery();
+        while (rs.next()) {
+            try {
+                UUID uuid = getUUID(rs, 1);
+                firstNames.put(uuid, rs.getString(2));
+                List<NameChange> playerChanges = changes.computeIfAbsent(uuid, u -> new ArrayList<>());
+                String newName = rs.getString(4);
+                if (newName != null) {
+                    playerChanges.add(new NameChange(newName, rs.getLong(3)));
+                }
+            } catch (IllegalArgumentException e) {
+                // ignore invalid uuid
             }
-            rs.close();
+        }
+        rs.close();
 
-            return new NameHistory(uuid, firstName, changes, System.currentTimeMillis());
-        });
+        long now = System.currentTimeMillis();
+        Map<UUID, NameHistory> result = new HashMap<>();
+        for (Map.Entry<UUID, String> e : firstNames.entrySet()) {
+            result.put(e.getKey(), new NameHistory(e.getKey(), e.getValue(), changes.get(e.getKey()), now));
+        }
+        return result;
     }
 
-    public Set<UUID> getKnownUsersFromHistory(final String name) throws SQLException {
-        return this.connection.runCommands((connectino, sqlConnection) -> {
+    @Override
+    public Set<UUID> getKnownUsersFromHistory(final String name) throws StorageException {
+        return runRead(name.toLowerCase(), (connectino, sqlConnection) -> {
             PreparedStatement smt = sqlConnection.getOrCreateStatement(selectNameUsers);
             smt.setString(1, name);
             smt.setString(2, name);
@@ -393,7 +1241,7 @@ public class UUIDDatabase {
 
             Set<UUID> result = new LinkedHashSet<>();
             while (rs.next()) {
-                result.add(UUID.fromString(rs.getString(1)));
+                result.add(getUUID(rs, 1));
             }
 
             rs.close();
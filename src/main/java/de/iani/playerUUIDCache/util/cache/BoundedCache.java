@@ -0,0 +1,137 @@
+package de.iani.playerUUIDCache.util.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A concurrent map with an optional size limit. Reads do not block. Expired entries are removed when they are read.
+ */
+public class BoundedCache<K, V> {
+    private final ConcurrentHashMap<K, V> map;
+
+    private final CachePolicy<K, V> policy;
+
+    private final ToLongFunction<V> weigher;
+
+    private final Predicate<V> expired;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxEntries
+     *            the maximum number of entries, or 0 for no limit
+     * @param maxWeight
+     *            the maximum estimated size of all entries in bytes, or 0 for no limit
+     * @param weigher
+     *            estimates the size of an entry in bytes
+     * @param expired
+     *            tests if an entry is expired and must not be returned anymore
+     */
+    public BoundedCache(long maxEntries, long maxWeight, ToLongFunction<V> weigher, Predicate<V> expired) {
+        this.map = new ConcurrentHashMap<>();
+        this.policy = new CachePolicy<>(maxEntries, maxWeight, map::remove);
+        this.weigher = weigher;
+        this.expired = expired;
+    }
+
+    public V get(K key) {
+        V value = map.get(key);
+        if (value != null && expired.test(value)) {
+            remove(key, value);
+            value = null;
+        }
+        if (value != null) {
+            policy.recordHit(key);
+        } else {
+            policy.recordMiss(key);
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        long weight = weigher.applyAsLong(value);
+        // the policy is updated while the key is locked, so its node always belongs to the value in the map
+        map.compute(key, (k, oldValue) -> {
+            policy.recordWriteWithoutEviction(k, value, weight);
+            return value;
+        });
+        policy.evictIfNeeded(key);
+    }
+
+    /**
+     * Puts the value into the cache, unless there is an existing value that should be kept.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the new value
+     * @param replaceExisting
+     *            called with the existing and the new value, returns true if the existing value should be replaced
+     */
+    public void putIf(K key, V value, BiPredicate<V, V> replaceExisting) {
+        long weight = weigher.applyAsLong(value);
+        map.compute(key, (k, oldValue) -> {
+            if (oldValue != null && !replaceExisting.test(oldValue, value)) {
+                return oldValue;
+            }
+            policy.recordWriteWithoutEviction(k, value, weight);
+            return value;
+        });
+        policy.evictIfNeeded(key);
+    }
+
+    public boolean remove(K key, V value) {
+        boolean[] removed = new boolean[1];
+        map.computeIfPresent(key, (k, oldValue) -> {
+            if (!oldValue.equals(value)) {
+                return oldValue;
+            }
+            policy.recordRemoval(k);
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    public V remove(K key) {
+        List<V> removed = new ArrayList<>(1);
+        map.computeIfPresent(key, (k, oldValue) -> {
+            policy.recordRemoval(k);
+            removed.add(oldValue);
+            return null;
+        });
+        return removed.isEmpty() ? null : removed.get(0);
+    }
+
+    /**
+     * Removes all entries matching the filter.
+     *
+     * @param filter
+     *            the filter
+     */
+    public void removeIf(Predicate<V> filter) {
+        map.forEach((key, value) -> {
+            if (filter.test(value)) {
+                remove(key, value);
+            }
+        });
+    }
+
+    public Collection<V> values() {
+        return Collections.unmodifiableCollection(map.values());
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public CachePolicy<K, V> getPolicy() {
+        return policy;
+    }
+}
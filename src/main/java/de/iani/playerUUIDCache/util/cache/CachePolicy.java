@@ -0,0 +1,252 @@
+package de.iani.playerUUIDCache.util.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Decides which entries of a size bounded cache are evicted and counts hits, misses and evictions.
+ *
+ * Entries are kept in a clock. A candidate for eviction gets a second chance if it was accessed since it was last
+ * checked. New entries are always admitted, but an eviction candidate that the frequency sketch considers to be used
+ * more often than the new entry gets a second chance as well (TinyLFU).
+ *
+ * If neither a maximum entry count nor a maximum weight is set, only the statistics are recorded.
+ */
+public class CachePolicy<K, V> {
+    private final long maxEntries;
+
+    private final long maxWeight;
+
+    private final BiConsumer<K, V> evictionListener;
+
+    private final FrequencySketch sketch;
+
+    private final ConcurrentHashMap<K, Node<K, V>> nodes;
+
+    private final ConcurrentLinkedQueue<Node<K, V>> clock;
+
+    private final AtomicLong totalWeight;
+
+    private final Object evictionLock;
+
+    private final LongAdder hits;
+
+    private final LongAdder misses;
+
+    private final LongAdder evictions;
+
+    private static final class Node<K, V> {
+        private final K key;
+
+        private final V value;
+
+        private final long weight;
+
+        private volatile boolean referenced;
+
+        private volatile boolean removed;
+
+        private Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Creates a new policy.
+     *
+     * @param maxEntries
+     *            the maximum number of entries, or 0 for no limit
+     * @param maxWeight
+     *            the maximum total weight of all entries, or 0 for no limit
+     * @param evictionListener
+     *            called with the key and the value of every entry that must be removed from the cache. The entry must
+     *            only be removed if the cache still contains this value for the key.
+     */
+    public CachePolicy(long maxEntries, long maxWeight, BiConsumer<K, V> evictionListener) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.maxWeight = Math.max(0, maxWeight);
+        this.evictionListener = evictionListener;
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        if (isBounded()) {
+            sketch = new FrequencySketch(this.maxEntries > 0 ? this.maxEntries : this.maxWeight / 256);
+            nodes = new ConcurrentHashMap<>();
+            clock = new ConcurrentLinkedQueue<>();
+            totalWeight = new AtomicLong();
+            evictionLock = new Object();
+        } else {
+            sketch = null;
+            nodes = null;
+            clock = null;
+            totalWeight = null;
+            evictionLock = null;
+        }
+    }
+
+    public boolean isBounded() {
+        return maxEntries > 0 || maxWeight > 0;
+    }
+
+    public void recordHit(K key) {
+        hits.increment();
+        if (sketch != null) {
+            sketch.increment(key);
+            Node<K, V> node = nodes.get(key);
+            if (node != null) {
+                node.referenced = true;
+            }
+        }
+    }
+
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    public void recordMiss(K key) {
+        misses.increment();
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+    }
+
+    /**
+     * Records that an entry was added to the cache or replaced. This may evict other entries, but not the new entry.
+     *
+     * @param key
+     *            the key of the entry
+     * @param value
+     *            the value of the entry
+     * @param weight
+     *            the estimated size of the entry in bytes
+     */
+    public void recordWrite(K key, V value, long weight) {
+        recordWriteWithoutEviction(key, value, weight);
+        evictIfNeeded(key);
+    }
+
+    /**
+     * Records a write like {@link #recordWrite(Object, Object, long)}, but does not evict entries. It can be called
+     * while the cache holds a lock for the key, so the recorded value is always the current one.
+     * {@link #evictIfNeeded(Object)} must be called after the lock is released.
+     */
+    public void recordWriteWithoutEviction(K key, V value, long weight) {
+        if (sketch == null) {
+            return;
+        }
+        Node<K, V> node = new Node<>(key, value, weight);
+        Node<K, V> oldNode = nodes.put(key, node);
+        if (oldNode != null) {
+            oldNode.removed = true;
+            node.referenced = oldNode.referenced;
+            totalWeight.addAndGet(-oldNode.weight);
+        } else {
+            sketch.increment(key);
+        }
+        totalWeight.addAndGet(weight);
+        clock.add(node);
+    }
+
+    /**
+     * Evicts entries if the cache is over its limits, but not the entry with the given key.
+     *
+     * @param key
+     *            the key of the entry that was just written
+     */
+    public void evictIfNeeded(K key) {
+        if (sketch != null && isOverLimit()) {
+            evict(nodes.get(key));
+        }
+    }
+
+    /**
+     * Records that an entry was removed from the cache for another reason than eviction.
+     *
+     * @param key
+     *            the key of the entry
+     */
+    public void recordRemoval(K key) {
+        if (nodes == null) {
+            return;
+        }
+        Node<K, V> node = nodes.remove(key);
+        if (node != null) {
+            node.removed = true;
+            totalWeight.addAndGet(-node.weight);
+        }
+    }
+
+    public void clear() {
+        if (nodes == null) {
+            return;
+        }
+        synchronized (evictionLock) {
+            nodes.clear();
+            clock.clear();
+            totalWeight.set(0);
+        }
+    }
+
+    private boolean isOverLimit() {
+        return (maxEntries > 0 && nodes.size() > maxEntries) || (maxWeight > 0 && totalWeight.get() > maxWeight);
+    }
+
+    /**
+     * @param added
+     *            the entry that was just written, it is not evicted, or null
+     */
+    private void evict(Node<K, V> added) {
+        synchronized (evictionLock) {
+            int secondChances = nodes.size();
+            while (isOverLimit()) {
+                Node<K, V> victim = clock.poll();
+                if (victim == null) {
+                    return;
+                }
+                if (victim.removed) {
+                    continue;
+                }
+                if (victim == added) {
+                    clock.add(victim);
+                    if (secondChances-- <= 0) {
+                        // no other entry can be evicted, for example if the new entry alone is over the limit
+                        return;
+                    }
+                    continue;
+                }
+                if ((victim.referenced || (added != null && sketch.frequency(victim.key) > sketch.frequency(added.key))) && secondChances-- > 0) {
+                    victim.referenced = false;
+                    clock.add(victim);
+                    continue;
+                }
+                if (nodes.remove(victim.key, victim)) {
+                    victim.removed = true;
+                    totalWeight.addAndGet(-victim.weight);
+                    evictions.increment();
+                    evictionListener.accept(victim.key, victim.value);
+                }
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getWeight() {
+        return totalWeight == null ? 0 : totalWeight.get();
+    }
+}
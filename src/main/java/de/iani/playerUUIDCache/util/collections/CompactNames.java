@@ -0,0 +1,116 @@
+package de.iani.playerUUIDCache.util.collections;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stores player names as byte arrays. Names that only contain ISO-8859-1 characters (all valid Minecraft names) use one
+ * byte per char. Other names are stored as a 0 byte followed by the UTF-16 chars.
+ *
+ * Names are compared and hashed case insensitively without creating lowercase copies.
+ */
+public final class CompactNames {
+    private CompactNames() {
+    }
+
+    public static byte[] encode(String name) {
+        int length = name.length();
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) > 0xff || (i == 0 && name.charAt(i) == 0)) {
+                byte[] utf16 = name.getBytes(StandardCharsets.UTF_16BE);
+                byte[] result = new byte[utf16.length + 1];
+                System.arraycopy(utf16, 0, result, 1, utf16.length);
+                return result;
+            }
+        }
+        return name.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public static String decode(byte[] name) {
+        if (isUtf16(name)) {
+            return new String(name, 1, name.length - 1, StandardCharsets.UTF_16BE);
+        }
+        return new String(name, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isUtf16(byte[] name) {
+        return name.length > 0 && name[0] == 0;
+    }
+
+    public static int length(byte[] name) {
+        return isUtf16(name) ? (name.length - 1) / 2 : name.length;
+    }
+
+    public static char charAt(byte[] name, int index) {
+        if (isUtf16(name)) {
+            return (char) (((name[1 + index * 2] & 0xff) << 8) | (name[2 + index * 2] & 0xff));
+        }
+        return (char) (name[index] & 0xff);
+    }
+
+    public static int hashIgnoreCase(byte[] name) {
+        int hash = 0;
+        int length = length(name);
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + Character.toLowerCase(charAt(name, i));
+        }
+        return hash;
+    }
+
+    public static int hashIgnoreCase(String name) {
+        int hash = 0;
+        int length = name.length();
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + Character.toLowerCase(name.charAt(i));
+        }
+        return hash;
+    }
+
+    public static boolean equalsIgnoreCase(byte[] name, String other) {
+        int length = length(name);
+        if (length != other.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase(charAt(name, i)) != Character.toLowerCase(other.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean equalsIgnoreCase(byte[] name, byte[] other) {
+        int length = length(name);
+        if (length != length(other)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase(charAt(name, i)) != Character.toLowerCase(charAt(other, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the name contains the given part, ignoring the case.
+     *
+     * @param name
+     *            the encoded name
+     * @param part
+     *            the part to search for
+     * @return true if the part is found
+     */
+    public static boolean containsIgnoreCase(byte[] name, String part) {
+        int partLength = part.length();
+        int last = length(name) - partLength;
+        outer: for (int start = 0; start <= last; start++) {
+            for (int i = 0; i < partLength; i++) {
+                if (Character.toLowerCase(charAt(name, start + i)) != Character.toLowerCase(part.charAt(i))) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
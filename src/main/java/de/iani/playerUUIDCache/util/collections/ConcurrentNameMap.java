@@ -0,0 +1,181 @@
+package de.iani.playerUUIDCache.util.collections;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A map from case insensitive names to objects using open addressing. The key of an entry is the encoded name (see
+ * {@link CompactNames}) that is part of the value itself, so the map does not store any keys or nodes.
+ *
+ * Reads never block and do not allocate. Writes are synchronized on the map.
+ */
+public class ConcurrentNameMap<V> {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private static final Object REMOVED = new Object();
+
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private final Function<V, byte[]> nameFunction;
+
+    private volatile Object[] table;
+
+    private volatile int size;
+
+    /**
+     * Number of slots that are either used or removed
+     */
+    private int usedSlots;
+
+    /**
+     * Creates a new map.
+     *
+     * @param nameFunction
+     *            returns the encoded name of a value
+     */
+    public ConcurrentNameMap(Function<V, byte[]> nameFunction) {
+        this.nameFunction = nameFunction;
+        this.table = new Object[16];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(String name) {
+        Object[] t = table;
+        int mask = t.length - 1;
+        int index = spread(CompactNames.hashIgnoreCase(name)) & mask;
+        while (true) {
+            Object value = VALUES.getAcquire(t, index);
+            if (value == null) {
+                return null;
+            }
+            if (value != REMOVED && CompactNames.equalsIgnoreCase(nameFunction.apply((V) value), name)) {
+                return (V) value;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Finds the slot containing a value with the given name. If there is none, the first free slot is returned as
+     * -(slot + 1).
+     */
+    @SuppressWarnings("unchecked")
+    private int findSlot(Object[] t, byte[] name) {
+        int mask = t.length - 1;
+        int index = spread(CompactNames.hashIgnoreCase(name)) & mask;
+        int firstRemoved = -1;
+        while (true) {
+            Object value = t[index];
+            if (value == null) {
+                return -((firstRemoved >= 0 ? firstRemoved : index) + 1);
+            }
+            if (value == REMOVED) {
+                if (firstRemoved < 0) {
+                    firstRemoved = index;
+                }
+            } else if (CompactNames.equalsIgnoreCase(nameFunction.apply((V) value), name)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Puts the value into the map. If there is already a value with the same name, the result of the merge function is
+     * stored instead.
+     *
+     * @param value
+     *            the new value
+     * @param mergeFunction
+     *            called with the old and the new value, returns the value to keep
+     */
+    public synchronized void merge(V value, BinaryOperator<V> mergeFunction) {
+        mergeLocked(value, mergeFunction);
+    }
+
+    /**
+     * Merges many values while holding the lock only once, see {@link #merge(Object, BinaryOperator)}.
+     */
+    public synchronized void mergeAll(V[] values, BinaryOperator<V> mergeFunction) {
+        for (V value : values) {
+            mergeLocked(value, mergeFunction);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mergeLocked(V value, BinaryOperator<V> mergeFunction) {
+        Object[] t = table;
+        int slot = findSlot(t, nameFunction.apply(value));
+        if (slot < 0) {
+            slot = -slot - 1;
+            boolean wasRemoved = t[slot] == REMOVED;
+            VALUES.setRelease(t, slot, value);
+            size++;
+            if (!wasRemoved && ++usedSlots > t.length * LOAD_FACTOR) {
+                rebuild();
+            }
+        } else {
+            V merged = mergeFunction.apply((V) t[slot], value);
+            VALUES.setRelease(t, slot, merged);
+        }
+    }
+
+    /**
+     * Removes the value with the given name, if it matches the condition.
+     *
+     * @param name
+     *            the encoded name
+     * @param condition
+     *            tests the current value
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void removeIf(byte[] name, Predicate<V> condition) {
+        Object[] t = table;
+        int slot = findSlot(t, name);
+        if (slot >= 0 && condition.test((V) t[slot])) {
+            VALUES.setRelease(t, slot, REMOVED);
+            size--;
+        }
+    }
+
+    /**
+     * Removes exactly this value from the map.
+     *
+     * @param value
+     *            the value
+     */
+    public void remove(V value) {
+        removeIf(nameFunction.apply(value), current -> current == value);
+    }
+
+    public synchronized void clear() {
+        table = new Object[16];
+        size = 0;
+        usedSlots = 0;
+    }
+
+    private void rebuild() {
+        Object[] oldTable = table;
+        Object[] newTable = new Object[UUIDIntMap.tableSizeFor(size * 2)];
+        for (Object value : oldTable) {
+            if (value != null && value != REMOVED) {
+                int slot = -findSlot(newTable, nameFunction.apply((V) value)) - 1;
+                newTable[slot] = value;
+            }
+        }
+        usedSlots = size;
+        table = newTable;
+    }
+}
@@ -0,0 +1,281 @@
+package de.iani.playerUUIDCache.util.collections;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.function.BinaryOperator;
+
+/**
+ * A map from UUIDs to objects using open addressing. The UUIDs are stored as two longs inline, so there are no UUID
+ * objects or map nodes per entry.
+ *
+ * Reads never block. Writes are synchronized on the map. A slot is never reused for another key until the table is
+ * rebuilt, so a reader always sees the key that belongs to the value it read.
+ */
+public class ConcurrentUUIDMap<V> {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private static final Object REMOVED = new Object();
+
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private static final class Table {
+        private final long[] keys;
+
+        private final Object[] values;
+
+        private final int mask;
+
+        private Table(int capacity) {
+            keys = new long[capacity * 2];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table;
+
+    private volatile int size;
+
+    /**
+     * Number of slots that are either used or removed
+     */
+    private int usedSlots;
+
+    public ConcurrentUUIDMap() {
+        this(16);
+    }
+
+    public ConcurrentUUIDMap(int expectedSize) {
+        table = new Table(UUIDIntMap.tableSizeFor(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public V get(UUID uuid) {
+        return get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long msb, long lsb) {
+        Table t = table;
+        int index = UUIDIntMap.hash(msb, lsb) & t.mask;
+        while (true) {
+            Object value = VALUES.getAcquire(t.values, index);
+            if (value == null) {
+                return null;
+            }
+            if (t.keys[index * 2] == msb && t.keys[index * 2 + 1] == lsb) {
+                return value == REMOVED ? null : (V) value;
+            }
+            index = (index + 1) & t.mask;
+        }
+    }
+
+    /**
+     * Returns the slot of the key in the current table, or the empty slot where it would be inserted.
+     */
+    private int findSlot(Table t, long msb, long lsb) {
+        int index = UUIDIntMap.hash(msb, lsb) & t.mask;
+        while (true) {
+            Object value = t.values[index];
+            if (value == null || (t.keys[index * 2] == msb && t.keys[index * 2 + 1] == lsb)) {
+                return index;
+            }
+            index = (index + 1) & t.mask;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V put(UUID uuid, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        Table t = table;
+        int index = findSlot(t, msb, lsb);
+        Object oldValue = t.values[index];
+        if (oldValue == null) {
+            t.keys[index * 2] = msb;
+            t.keys[index * 2 + 1] = lsb;
+            VALUES.setRelease(t.values, index, value);
+            size++;
+            if (++usedSlots > t.values.length * LOAD_FACTOR) {
+                rebuild();
+            }
+            return null;
+        }
+        VALUES.setRelease(t.values, index, value);
+        if (oldValue == REMOVED) {
+            size++;
+            return null;
+        }
+        return (V) oldValue;
+    }
+
+    /**
+     * Puts many values while holding the lock only once. If there is already a value for a key, the result of the merge
+     * function is stored instead.
+     *
+     * @param uuids
+     *            the keys
+     * @param values
+     *            the new values
+     * @param mergeFunction
+     *            called with the old and the new value, returns the value to keep
+     * @param oldValues
+     *            receives the previous value of each key, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void mergeAll(UUID[] uuids, V[] values, BinaryOperator<V> mergeFunction, V[] oldValues) {
+        for (int i = 0; i < uuids.length; i++) {
+            Table t = table;
+            int index = findSlot(t, uuids[i].getMostSignificantBits(), uuids[i].getLeastSignificantBits());
+            Object oldValue = t.values[index];
+            if (oldValue == null || oldValue == REMOVED) {
+                oldValues[i] = null;
+                put(uuids[i], values[i]);
+            } else {
+                oldValues[i] = (V) oldValue;
+                VALUES.setRelease(t.values, index, mergeFunction.apply((V) oldValue, values[i]));
+            }
+        }
+    }
+
+    public synchronized V putIfAbsent(UUID uuid, V value) {
+        V oldValue = get(uuid);
+        if (oldValue != null) {
+            return oldValue;
+        }
+        put(uuid, value);
+        return null;
+    }
+
+    public synchronized boolean replace(UUID uuid, V oldValue, V newValue) {
+        if (newValue == null) {
+            throw new NullPointerException();
+        }
+        Table t = table;
+        int index = findSlot(t, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (oldValue == null || t.values[index] != oldValue) {
+            return false;
+        }
+        VALUES.setRelease(t.values, index, newValue);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(UUID uuid) {
+        Table t = table;
+        int index = findSlot(t, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        Object oldValue = t.values[index];
+        if (oldValue == null || oldValue == REMOVED) {
+            return null;
+        }
+        VALUES.setRelease(t.values, index, REMOVED);
+        size--;
+        return (V) oldValue;
+    }
+
+    public synchronized boolean remove(UUID uuid, V value) {
+        Table t = table;
+        int index = findSlot(t, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (value == null || t.values[index] != value) {
+            return false;
+        }
+        VALUES.setRelease(t.values, index, REMOVED);
+        size--;
+        return true;
+    }
+
+    public synchronized void clear() {
+        table = new Table(table.values.length);
+        size = 0;
+        usedSlots = 0;
+    }
+
+    private void rebuild() {
+        Table oldTable = table;
+        int capacity = UUIDIntMap.tableSizeFor(size * 2);
+        Table newTable = new Table(Math.max(capacity, 16));
+        for (int i = 0; i < oldTable.values.length; i++) {
+            Object value = oldTable.values[i];
+            if (value != null && value != REMOVED) {
+                long msb = oldTable.keys[i * 2];
+                long lsb = oldTable.keys[i * 2 + 1];
+                int index = findSlot(newTable, msb, lsb);
+                newTable.keys[index * 2] = msb;
+                newTable.keys[index * 2 + 1] = lsb;
+                newTable.values[index] = value;
+            }
+        }
+        usedSlots = size;
+        table = newTable;
+    }
+
+    /**
+     * Returns a view of the values of this map. Iterating it does not block writers. It reflects the state of the map
+     * at some point during the iteration.
+     *
+     * @return the values
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator(table);
+            }
+
+            @Override
+            public int size() {
+                return ConcurrentUUIDMap.this.size;
+            }
+        };
+    }
+
+    private class ValueIterator implements Iterator<V> {
+        private final Table table;
+
+        private int index;
+
+        private Object next;
+
+        private ValueIterator(Table table) {
+            this.table = table;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && index < table.values.length) {
+                Object value = VALUES.getAcquire(table.values, index++);
+                if (value != null && value != REMOVED) {
+                    next = value;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            V value = (V) next;
+            advance();
+            return value;
+        }
+    }
+}
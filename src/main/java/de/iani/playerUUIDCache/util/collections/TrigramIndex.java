@@ -0,0 +1,153 @@
+package de.iani.playerUUIDCache.util.collections;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * An index from the case insensitive trigrams of encoded names (see {@link CompactNames}) to the values containing
+ * them. It is used to find all values whose name contains a given string of at least three chars without scanning all
+ * values.
+ *
+ * Values are never removed directly. The owner tells the index when a value became invalid and the index drops invalid
+ * values from its posting lists when they grow or when there are too many of them.
+ */
+public class TrigramIndex<V> {
+    public static final int MIN_QUERY_LENGTH = 3;
+
+    private static final int MIN_PURGE_THRESHOLD = 1024;
+
+    private final Function<V, byte[]> nameFunction;
+
+    private final Predicate<V> validFunction;
+
+    private final ConcurrentHashMap<Long, Postings> postings;
+
+    private int invalidated;
+
+    private int added;
+
+    /**
+     * Creates a new index.
+     *
+     * @param nameFunction
+     *            returns the encoded name of a value
+     * @param validFunction
+     *            checks if a value is still valid
+     */
+    public TrigramIndex(Function<V, byte[]> nameFunction, Predicate<V> validFunction) {
+        this.nameFunction = nameFunction;
+        this.validFunction = validFunction;
+        this.postings = new ConcurrentHashMap<>();
+    }
+
+    private static long trigram(char c0, char c1, char c2) {
+        return ((long) Character.toLowerCase(c0) << 32) | ((long) Character.toLowerCase(c1) << 16) | Character.toLowerCase(c2);
+    }
+
+    public synchronized void addAll(Iterable<V> values) {
+        for (V value : values) {
+            add(value);
+        }
+    }
+
+    public synchronized void add(V value) {
+        byte[] name = nameFunction.apply(value);
+        int length = CompactNames.length(name);
+        for (int i = 0; i + MIN_QUERY_LENGTH <= length; i++) {
+            long key = trigram(CompactNames.charAt(name, i), CompactNames.charAt(name, i + 1), CompactNames.charAt(name, i + 2));
+            postings.computeIfAbsent(key, k -> new Postings()).add(value);
+        }
+        added++;
+    }
+
+    /**
+     * Tells the index that a value added before is not valid anymore.
+     */
+    public synchronized void invalidated() {
+        invalidated++;
+        if (invalidated > MIN_PURGE_THRESHOLD && invalidated > added - invalidated) {
+            purge();
+        }
+    }
+
+    private void purge() {
+        postings.values().removeIf(list -> list.removeInvalid() == 0);
+        added -= invalidated;
+        invalidated = 0;
+    }
+
+    public synchronized void clear() {
+        postings.clear();
+        added = 0;
+        invalidated = 0;
+    }
+
+    /**
+     * Calls the action for every valid value whose name contains the given part, ignoring the case. Each value is
+     * passed at most once.
+     *
+     * @param part
+     *            the part of the name, must have at least {@link #MIN_QUERY_LENGTH} chars
+     * @param action
+     *            called for each matching value
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachMatch(String part, Consumer<V> action) {
+        if (part.length() < MIN_QUERY_LENGTH) {
+            throw new IllegalArgumentException("part too short");
+        }
+        Postings smallest = null;
+        for (int i = 0; i + MIN_QUERY_LENGTH <= part.length(); i++) {
+            Postings list = postings.get(trigram(part.charAt(i), part.charAt(i + 1), part.charAt(i + 2)));
+            if (list == null) {
+                return;
+            }
+            if (smallest == null || list.size < smallest.size) {
+                smallest = list;
+            }
+        }
+        for (Object value : smallest.snapshot()) {
+            if (CompactNames.containsIgnoreCase(nameFunction.apply((V) value), part) && validFunction.test((V) value)) {
+                action.accept((V) value);
+            }
+        }
+    }
+
+    private class Postings {
+        private Object[] values = new Object[4];
+
+        private volatile int size;
+
+        private synchronized void add(Object value) {
+            // a name containing the same trigram more than once is added once
+            if (size > 0 && values[size - 1] == value) {
+                return;
+            }
+            // while nothing was invalidated, for example while all players are loaded, there is nothing to remove
+            if (size == values.length && (invalidated == 0 || removeInvalid() > values.length / 2)) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[size++] = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        private synchronized int removeInvalid() {
+            int newSize = 0;
+            for (int i = 0; i < size; i++) {
+                if (validFunction.test((V) values[i])) {
+                    values[newSize++] = values[i];
+                }
+            }
+            Arrays.fill(values, newSize, size, null);
+            size = newSize;
+            return newSize;
+        }
+
+        private synchronized Object[] snapshot() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
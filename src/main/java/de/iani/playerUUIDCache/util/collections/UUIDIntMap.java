@@ -0,0 +1,136 @@
+package de.iani.playerUUIDCache.util.collections;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A map from UUIDs to non-negative ints using open addressing. The UUIDs are stored as two longs inline, so no objects
+ * are allocated per entry. Entries cannot be removed. This map is not thread safe.
+ */
+public class UUIDIntMap {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+
+    /**
+     * The value + 1 for each slot, 0 for empty slots
+     */
+    private int[] values;
+
+    private int mask;
+
+    private int size;
+
+    private int resizeThreshold;
+
+    public UUIDIntMap() {
+        this(16);
+    }
+
+    public UUIDIntMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * 2];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    static int tableSizeFor(int expectedSize) {
+        long capacity = Math.max(16, (long) Math.ceil(expectedSize / LOAD_FACTOR));
+        capacity = Long.highestOneBit(capacity - 1) << 1;
+        if (capacity > 1 << 30) {
+            throw new IllegalArgumentException("Too many entries: " + expectedSize);
+        }
+        return (int) capacity;
+    }
+
+    static int hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L + lsb;
+        h ^= h >>> 32;
+        h *= 0xBF58476D1CE4E5B9L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the value for a UUID.
+     *
+     * @param uuid
+     *            the UUID
+     * @return the value, or -1 if the UUID is not in this map
+     */
+    public int get(UUID uuid) {
+        return get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public int get(long msb, long lsb) {
+        int index = hash(msb, lsb) & mask;
+        while (true) {
+            int value = values[index];
+            if (value == 0) {
+                return -1;
+            }
+            if (keys[index * 2] == msb && keys[index * 2 + 1] == lsb) {
+                return value - 1;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    public void put(UUID uuid, int value) {
+        put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), value);
+    }
+
+    public void put(long msb, long lsb, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value must not be negative");
+        }
+        int index = hash(msb, lsb) & mask;
+        while (true) {
+            if (values[index] == 0) {
+                keys[index * 2] = msb;
+                keys[index * 2 + 1] = lsb;
+                values[index] = value + 1;
+                if (++size > resizeThreshold) {
+                    resize();
+                }
+                return;
+            }
+            if (keys[index * 2] == msb && keys[index * 2 + 1] == lsb) {
+                values[index] = value + 1;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(values.length * 2);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != 0) {
+                long msb = oldKeys[i * 2];
+                long lsb = oldKeys[i * 2 + 1];
+                int index = hash(msb, lsb) & mask;
+                while (values[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                keys[index * 2] = msb;
+                keys[index * 2 + 1] = lsb;
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
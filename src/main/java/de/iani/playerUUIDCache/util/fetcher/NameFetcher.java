@@ -35,7 +35,7 @@ public class NameFetcher implements Callable<Map<UUID, String>> {
                 is = connection.getInputStream();
             } catch (IOException e) {
                 if (e.getMessage().startsWith("Server returned HTTP response code: 403")) {
-                    return null; // user not found
+                    continue; // user not found
                 }
                 throw e;
             }
@@ -4,6 +4,10 @@ import java.sql.SQLException;
 
 public class MySQLConnection extends SQLConnection {
     public MySQLConnection(String host, String database, String user, String password) throws SQLException {
-        super("jdbc:mysql://" + host + "/" + database + "?requireSSL=false&verifyServerCertificate=false", database, user, password, "com.mysql.cj.jdbc.Driver");
+        this(host, database, user, password, 1, 0);
+    }
+
+    public MySQLConnection(String host, String database, String user, String password, int poolSize, long maxIdleTime) throws SQLException {
+        super("jdbc:mysql://" + host + "/" + database + "?requireSSL=false&verifyServerCertificate=false&rewriteBatchedStatements=true", database, user, password, "com.mysql.cj.jdbc.Driver", poolSize, maxIdleTime);
     }
 }
@@ -1,160 +1,380 @@
-package de.iani.playerUUIDCache.util.sql;
-
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.HashMap;
-
-public class SQLConnection {
-    private String connectURL;
-
-    private Connection connection;
-
-    private String user;
-
-    private String password;
-
-    private String database;
-
-    private int maxTries;
-
-    private HashMap<Object, PreparedStatement> cachedStatements;
-
-    public SQLConnection(String connectURL, String database, String user, String password) throws SQLException {
-        this(connectURL, database, user, password, null);
-    }
-
-    public SQLConnection(String connectURL, String database, String user, String password, String driverClass) throws SQLException {
-        if (driverClass != null) {
-            try {
-                Class.forName(driverClass);
-            } catch (Exception e) {
-                throw new SQLException(e);
-            }
-        }
-        this.connectURL = connectURL;
-        this.user = user;
-        this.password = password;
-        this.database = database;
-        this.cachedStatements = new HashMap<Object, PreparedStatement>();
-        this.maxTries = 3;
-        connect();
-    }
-
-    public synchronized void disconnect() {
-        if (this.connection != null) {
-            try {
-                this.connection.close();
-            } catch (SQLException e) {
-                // ignore
-            }
-            this.connection = null;
-        }
-        this.cachedStatements.clear();
-    }
-
-    private synchronized void connect() throws SQLException {
-        disconnect();
-        this.connection = user != null ? DriverManager.getConnection(connectURL, user, password) : DriverManager.getConnection(connectURL);
-        this.connection.setAutoCommit(false);
-    }
-
-    public synchronized <T> T runCommands(SQLRunnable<T> runnable) throws SQLException {
-        int fails = 0;
-        while (true) {
-            try {
-                if (connection == null) {
-                    connect();
-                }
-                T rv = runnable.execute(connection, this);
-                connection.commit();
-                return rv;
-            } catch (SQLException e) {
-                fails += 1;
-                if (connection != null) {
-                    try {
-                        if (!connection.isClosed()) {
-                            connection.rollback();
-                        }
-                    } catch (SQLException ex) {
-                        // ignore
-                    }
-                    try {
-                        connection.close();
-                    } catch (SQLException ex) {
-                        // ignore
-                    }
-                    connection = null;
-                }
-                if (fails >= maxTries) {
-                    throw e;
-                }
-            }
-        }
-    }
-
-    public PreparedStatement getOrCreateStatement(String statement) throws SQLException {
-        PreparedStatement smt = cachedStatements.get(statement);
-        if (smt == null || smt.isClosed()) {
-            smt = connection.prepareStatement(statement);
-            cachedStatements.put(statement, smt);
-        }
-        return smt;
-    }
-
-    public PreparedStatement getOrCreateStatement(String statement, int autoGeneratedKeys) throws SQLException {
-        PreparedStatement smt = cachedStatements.get(statement);
-        if (smt == null || smt.isClosed()) {
-            smt = connection.prepareStatement(statement, autoGeneratedKeys);
-            cachedStatements.put(statement, smt);
-        }
-        return smt;
-    }
-
-    public boolean hasTable(final String table) throws SQLException {
-        return hasTable(this.database, table);
-    }
-
-    public boolean hasTable(final String database, final String table) throws SQLException {
-        return runCommands(new SQLRunnable<Boolean>() {
-            @Override
-            public Boolean execute(Connection connection, SQLConnection sqlConnection) throws SQLException {
-                PreparedStatement smt = sqlConnection.getOrCreateStatement("SELECT COUNT(*) FROM information_schema.tables WHERE table_schema = ? AND table_name = ?");
-                smt.setString(1, database);
-                smt.setString(2, table);
-                ResultSet rs = smt.executeQuery();
-                boolean rv = false;
-                if (rs.next()) {
-                    rv = rs.getInt(1) > 0;
-                }
-                rs.close();
-                return rv;
-            }
-        });
-    }
-
-    public boolean hasColumn(final String table, final String column) throws SQLException {
-        return hasColumn(this.database, table, column);
-    }
-
-    public boolean hasColumn(final String database, final String table, final String column) throws SQLException {
-        return runCommands(new SQLRunnable<Boolean>() {
-            @Override
-            public Boolean execute(Connection connection, SQLConnection sqlConnection) throws SQLException {
-                PreparedStatement smt = sqlConnection.getOrCreateStatement("SELECT COUNT(*) FROM information_schema.columns WHERE table_schema = ? AND table_name = ? AND column_name = ?");
-                smt.setString(1, database);
-                smt.setString(2, table);
-                smt.setString(3, column);
-                ResultSet rs = smt.executeQuery();
-                boolean rv = false;
-                if (rs.next()) {
-                    rv = rs.getInt(1) > 0;
-                }
-                rs.close();
-                return rv;
-            }
-        });
-    }
-}
+package de.iani.playerUUIDCache.util.sql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class SQLConnection {
+    /**
+     * Connections idle for a shorter time are not validated before they are used
+     */
+    private static final long VALIDATION_INTERVAL = 10000;
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private String connectURL;
+
+    private String user;
+
+    private String password;
+
+    private String database;
+
+    private int maxTries;
+
+    private final int poolSize;
+
+    private final long maxIdleTime;
+
+    /**
+     * Idle connections, the most recently used last
+     */
+    private final ArrayDeque<PooledConnection> idleConnections;
+
+    private final ThreadLocal<PooledConnection> currentConnection;
+
+    private int openConnections;
+
+    /**
+     * Incremented on disconnect, connections of older generations are closed when they are released
+     */
+    private int generation;
+
+    private static final class PooledConnection {
+        private final Connection connection;
+
+        private final HashMap<Object, PreparedStatement> cachedStatements;
+
+        private final int generation;
+
+        private long lastUsed;
+
+        private PooledConnection(Connection connection, int generation) {
+            this.connection = connection;
+            this.cachedStatements = new HashMap<Object, PreparedStatement>();
+            this.generation = generation;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        private void close() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // ignore
+            }
+        }
+    }
+
+    public SQLConnection(String connectURL, String database, String user, String password) throws SQLException {
+        this(connectURL, database, user, password, null);
+    }
+
+    public SQLConnection(String connectURL, String database, String user, String password, String driverClass) throws SQLException {
+        this(connectURL, database, user, password, driverClass, 1, 0);
+    }
+
+    /**
+     * Creates a pool of connections. Each call of {@link #runCommands(SQLRunnable)} uses one connection of the pool, so
+     * up to poolSize calls can run at the same time.
+     *
+     * @param poolSize
+     *            the maximum number of open connections
+     * @param maxIdleTime
+     *            the time in ms after which unused connections are closed, or 0 to keep them open
+     */
+    public SQLConnection(String connectURL, String database, String user, String password, String driverClass, int poolSize, long maxIdleTime) throws SQLException {
+        if (driverClass != null) {
+            try {
+                Class.forName(driverClass);
+            } catch (Exception e) {
+                throw new SQLException(e);
+            }
+        }
+        this.connectURL = connectURL;
+        this.user = user;
+        this.password = password;
+        this.database = database;
+        this.maxTries = 3;
+        this.poolSize = Math.max(1, poolSize);
+        this.maxIdleTime = maxIdleTime;
+        this.idleConnections = new ArrayDeque<>();
+        this.currentConnection = new ThreadLocal<>();
+        release(acquire());
+    }
+
+    /**
+     * Closes all idle connections. Connections that are in use are closed when their commands are finished. Later
+     * commands open new connections.
+     */
+    public void disconnect() {
+        ArrayList<PooledConnection> toClose;
+        synchronized (this) {
+            generation++;
+            toClose = new ArrayList<>(idleConnections);
+            idleConnections.clear();
+            openConnections -= toClose.size();
+            notifyAll();
+        }
+        for (PooledConnection pooled : toClose) {
+            pooled.close();
+        }
+    }
+
+    private PooledConnection connect(int generation) throws SQLException {
+        Connection connection = user != null ? DriverManager.getConnection(connectURL, user, password) : DriverManager.getConnection(connectURL);
+        try {
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return new PooledConnection(connection, generation);
+    }
+
+    private PooledConnection acquire() throws SQLException {
+        while (true) {
+            PooledConnection pooled;
+            int currentGeneration;
+            ArrayList<PooledConnection> toClose = new ArrayList<>();
+            synchronized (this) {
+                // also done here, so a pool that is not used anymore shrinks on the next use
+                evictIdle(System.currentTimeMillis(), toClose);
+                while (true) {
+                    currentGeneration = generation;
+                    pooled = idleConnections.pollLast();
+                    if (pooled != null) {
+                        break;
+                    }
+                    if (openConnections < poolSize) {
+                        openConnections++;
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection", e);
+                    }
+                }
+            }
+            for (PooledConnection closing : toClose) {
+                closing.close();
+            }
+            if (pooled == null) {
+                try {
+                    return connect(currentGeneration);
+                } catch (SQLException | RuntimeException e) {
+                    discard(null);
+                    throw e;
+                }
+            }
+            if (System.currentTimeMillis() - pooled.lastUsed < VALIDATION_INTERVAL || isValid(pooled)) {
+                return pooled;
+            }
+            discard(pooled);
+        }
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        long now = System.currentTimeMillis();
+        pooled.lastUsed = now;
+        ArrayList<PooledConnection> toClose = new ArrayList<>();
+        synchronized (this) {
+            if (pooled.generation != generation) {
+                toClose.add(pooled);
+                openConnections--;
+            } else {
+                idleConnections.addLast(pooled);
+            }
+            evictIdle(now, toClose);
+            notifyAll();
+        }
+        for (PooledConnection closing : toClose) {
+            closing.close();
+        }
+    }
+
+    /**
+     * Removes connections that were idle for longer than maxIdleTime from the pool, but keeps one. Must be called while
+     * synchronized, the removed connections must be closed afterwards.
+     */
+    private void evictIdle(long now, ArrayList<PooledConnection> toClose) {
+        // the least recently used connections are first
+        while (maxIdleTime > 0 && idleConnections.size() > 1 && idleConnections.peekFirst().lastUsed + maxIdleTime < now) {
+            toClose.add(idleConnections.pollFirst());
+            openConnections--;
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        if (pooled != null) {
+            pooled.close();
+        }
+        synchronized (this) {
+            openConnections--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Runs the commands on a connection of the pool and commits them. If it fails, the connection is closed and the
+     * commands are retried on another connection. Failed attempts to connect are retried as well. Calls from within the
+     * commands run on the same connection and in the same transaction.
+     */
+    public <T> T runCommands(SQLRunnable<T> runnable) throws SQLException {
+        PooledConnection current = currentConnection.get();
+        if (current != null) {
+            return runnable.execute(current.connection, this);
+        }
+        int fails = 0;
+        while (true) {
+            PooledConnection pooled;
+            try {
+                pooled = acquire();
+            } catch (SQLException e) {
+                // for example while the server restarts
+                fails += 1;
+                if (fails >= maxTries || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                continue;
+            }
+            currentConnection.set(pooled);
+            try {
+                T rv = runnable.execute(pooled.connection, this);
+                pooled.connection.commit();
+                currentConnection.remove();
+                release(pooled);
+                return rv;
+            } catch (SQLException e) {
+                currentConnection.remove();
+                fails += 1;
+                try {
+                    if (!pooled.connection.isClosed()) {
+                        pooled.connection.rollback();
+                    }
+                } catch (SQLException ex) {
+                    // ignore
+                }
+                discard(pooled);
+                if (fails >= maxTries) {
+                    throw e;
+                }
+            } catch (RuntimeException | Error e) {
+                currentConnection.remove();
+                discard(pooled);
+                throw e;
+            }
+        }
+    }
+
+    private PooledConnection getCurrentConnection() {
+        PooledConnection current = currentConnection.get();
+        if (current == null) {
+            throw new IllegalStateException("Statements may only be created in runCommands");
+        }
+        return current;
+    }
+
+    public PreparedStatement getOrCreateStatement(String statement) throws SQLException {
+        PooledConnection current = getCurrentConnection();
+        PreparedStatement smt = current.cachedStatements.get(statement);
+        if (smt == null || smt.isClosed()) {
+            smt = current.connection.prepareStatement(statement);
+            current.cachedStatements.put(statement, smt);
+        }
+        return smt;
+    }
+
+    public PreparedStatement getOrCreateStatement(String statement, int autoGeneratedKeys) throws SQLException {
+        PooledConnection current = getCurrentConnection();
+        PreparedStatement smt = current.cachedStatements.get(statement);
+        if (smt == null || smt.isClosed()) {
+            smt = current.connection.prepareStatement(statement, autoGeneratedKeys);
+            current.cachedStatements.put(statement, smt);
+        }
+        return smt;
+    }
+
+    public boolean hasTable(final String table) throws SQLException {
+        return hasTable(this.database, table);
+    }
+
+    public boolean hasTable(final String database, final String table) throws SQLException {
+        return runCommands(new SQLRunnable<Boolean>() {
+            @Override
+            public Boolean execute(Connection connection, SQLConnection sqlConnection) throws SQLException {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement("SELECT COUNT(*) FROM information_schema.tables WHERE table_schema = ? AND table_name = ?");
+                smt.setString(1, database);
+                smt.setString(2, table);
+                ResultSet rs = smt.executeQuery();
+                boolean rv = false;
+                if (rs.next()) {
+                    rv = rs.getInt(1) > 0;
+                }
+                rs.close();
+                return rv;
+            }
+        });
+    }
+
+    /**
+     * Gets the data type of a column, for example "char" or "binary".
+     *
+     * @return the data type, or null if the column does not exist
+     */
+    public String getColumnType(final String table, final String column) throws SQLException {
+        return runCommands(new SQLRunnable<String>() {
+            @Override
+            public String execute(Connection connection, SQLConnection sqlConnection) throws SQLException {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement("SELECT data_type FROM information_schema.columns WHERE table_schema = ? AND table_name = ? AND column_name = ?");
+                smt.setString(1, database);
+                smt.setString(2, table);
+                smt.setString(3, column);
+                ResultSet rs = smt.executeQuery();
+                String rv = null;
+                if (rs.next()) {
+                    rv = rs.getString(1).toLowerCase();
+                }
+                rs.close();
+                return rv;
+            }
+        });
+    }
+
+    public boolean hasColumn(final String table, final String column) throws SQLException {
+        return hasColumn(this.database, table, column);
+    }
+
+    public boolean hasColumn(final String database, final String table, final String column) throws SQLException {
+        return runCommands(new SQLRunnable<Boolean>() {
+            @Override
+            public Boolean execute(Connection connection, SQLConnection sqlConnection) throws SQLException {
+                PreparedStatement smt = sqlConnection.getOrCreateStatement("SELECT COUNT(*) FROM information_schema.columns WHERE table_schema = ? AND table_name = ? AND column_name = ?");
+                smt.setString(1, database);
+                smt.setString(2, table);
+                smt.setString(3, column);
+                ResultSet rs = smt.executeQuery();
+                boolean rv = false;
+                if (rs.next()) {
+                    rv = rs.getInt(1) > 0;
+                }
+                rs.close();
+                return rv;
+            }
+        });
+    }
+}
@@ -1,14 +1,27 @@
-package de.iani.playerUUIDCache.util.sql;
-
-import java.util.regex.Matcher;
-
-public class SQLUtil {
-
-    public static final String escapeLike(String arg) {
-        arg = arg.replaceAll("\\\\", Matcher.quoteReplacement("\\\\"));
-        arg = arg.replaceAll("\\_", Matcher.quoteReplacement("\\_"));
-        arg = arg.replaceAll("\\%", Matcher.quoteReplacement("\\%"));
-        return arg;
-    }
-
-}
+package de.iani.playerUUIDCache.util.sql;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.regex.Matcher;
+
+public class SQLUtil {
+
+    public static final String escapeLike(String arg) {
+        arg = arg.replaceAll("\\\\", Matcher.quoteReplacement("\\\\"));
+        arg = arg.replaceAll("\\_", Matcher.quoteReplacement("\\_"));
+        arg = arg.replaceAll("\\%", Matcher.quoteReplacement("\\%"));
+        return arg;
+    }
+
+    public static final byte[] uuidToBytes(UUID uuid) {
+        return ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+    }
+
+    public static final UUID bytesToUUID(byte[] bytes) {
+        if (bytes == null || bytes.length != 16) {
+            throw new IllegalArgumentException("Invalid UUID bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
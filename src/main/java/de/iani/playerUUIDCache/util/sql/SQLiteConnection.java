@@ -0,0 +1,24 @@
+package de.iani.playerUUIDCache.util.sql;
+
+import java.io.File;
+import java.sql.SQLException;
+
+public class SQLiteConnection extends SQLConnection {
+    /**
+     * Opens a database file. It uses write-ahead logging, so reads do not block writes, and waits up to 10 seconds for
+     * the write lock.
+     */
+    public SQLiteConnection(File file, int poolSize, long maxIdleTime) throws SQLException {
+        this(file, poolSize, maxIdleTime, "WAL", "NORMAL", 10000);
+    }
+
+    /**
+     * Opens a database file with the given journal_mode and synchronous pragmas.
+     *
+     * @param busyTimeout
+     *            the time in ms to wait for the write lock
+     */
+    public SQLiteConnection(File file, int poolSize, long maxIdleTime, String journalMode, String synchronous, long busyTimeout) throws SQLException {
+        super("jdbc:sqlite:" + file.getAbsolutePath() + "?journal_mode=" + journalMode + "&synchronous=" + synchronous + "&busy_timeout=" + busyTimeout, file.getName(), null, null, "org.sqlite.JDBC", poolSize, maxIdleTime);
+    }
+}